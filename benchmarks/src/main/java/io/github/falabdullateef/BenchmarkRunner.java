@@ -0,0 +1,32 @@
+package io.github.falabdullateef;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Entry point of {@code benchmarks.jar}. Takes the usual JMH command line, but adds the GC
+ * profiler ({@code -prof gc}) unless other profilers were requested, so allocation rate is
+ * always reported next to time.
+ */
+public final class BenchmarkRunner {
+    private BenchmarkRunner() {}
+
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions cli = new CommandLineOptions(args);
+        if (cli.shouldHelp()) {
+            cli.showHelp();
+            return;
+        }
+        ChainedOptionsBuilder options = new OptionsBuilder().parent(cli);
+        if (cli.getProfilers().isEmpty()) options.addProfiler(GCProfiler.class);
+        Runner runner = new Runner(options.build());
+        if (cli.shouldList()) {
+            runner.list();
+            return;
+        }
+        runner.run();
+    }
+}
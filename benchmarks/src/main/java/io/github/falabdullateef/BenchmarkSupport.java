@@ -0,0 +1,20 @@
+package io.github.falabdullateef;
+
+/** Shared fixtures for the benchmarks. */
+final class BenchmarkSupport {
+    private BenchmarkSupport() {}
+
+    /** Fixed seed so every run sees the same synthetic data. */
+    static final long SEED = 42L;
+
+    /** A fresh in-heap copy of {@code source}, since clustering consumes its matrix. */
+    static DistanceMatrix copy(DistanceMatrix source) {
+        String[] labels = new String[source.size()];
+        for (int i = 0; i < labels.length; i++) labels[i] = source.label(i);
+        DistanceMatrix copy = new HeapDistanceMatrix(labels);
+        for (int i = 0; i < labels.length; i++) {
+            for (int j = 0; j < i; j++) copy.set(i, j, source.get(i, j));
+        }
+        return copy;
+    }
+}
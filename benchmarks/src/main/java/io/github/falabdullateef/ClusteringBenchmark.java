@@ -0,0 +1,53 @@
+package io.github.falabdullateef;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** The find-pair/merge loop alone, on a precomputed matrix (a fresh copy per invocation). */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class ClusteringBenchmark {
+
+    @Param({"1000", "5000"})
+    public int taxa;
+
+    @Param({"UPGMA", "WPGMA", "NJ"})
+    public String method;
+
+    private DistanceMatrix distances;
+    private DistanceMatrix working;
+    private TreeBuilder builder;
+
+    @Setup(Level.Trial)
+    public void computeDistances() throws IOException {
+        builder = new TreeBuilder().method(ClusterMethod.parse(method)).matrixBackend(MatrixBackend.HEAP, null);
+        distances = builder.distances(SyntheticAlignment.packedDna(taxa, 5000, BenchmarkSupport.SEED));
+    }
+
+    @Setup(Level.Invocation)
+    public void copyMatrix() {
+        working = BenchmarkSupport.copy(distances);
+    }
+
+    @Benchmark
+    public Object cluster() throws IOException {
+        return builder.cluster(working);
+    }
+}
@@ -0,0 +1,83 @@
+package io.github.falabdullateef;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Per-pair cost of the Hamming kernels over a small block of taxa (all pairs per invocation), with
+ * a character-by-character String loop as the baseline.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DistanceKernelBenchmark {
+    private static final int TAXA = 32;
+    private static final int PAIRS = TAXA * (TAXA - 1) / 2;
+
+    @Param({"1000", "30000"})
+    public int length;
+
+    private List<String> dnaStrings;
+    private PackedSequences dna;
+    private PackedSequences binary;
+
+    @Setup(Level.Trial)
+    public void generate() {
+        dnaStrings = SyntheticAlignment.dna(TAXA, length, BenchmarkSupport.SEED);
+        dna = PackedSequences.dna(dnaStrings);
+        binary = PackedSequences.binary(SyntheticAlignment.binary(TAXA, length, BenchmarkSupport.SEED));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PAIRS)
+    public double hammingDNA() {
+        double sum = 0;
+        for (int i = 0; i < TAXA; i++) {
+            for (int j = 0; j < i; j++) sum += DistanceCalculators.hammingDNA(dna, i, j);
+        }
+        return sum;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PAIRS)
+    public double hammingBinary() {
+        double sum = 0;
+        for (int i = 0; i < TAXA; i++) {
+            for (int j = 0; j < i; j++) sum += DistanceCalculators.hammingBinary(binary, i, j);
+        }
+        return sum;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PAIRS)
+    public double stringBaseline() {
+        double sum = 0;
+        for (int i = 0; i < TAXA; i++) {
+            String a = dnaStrings.get(i);
+            for (int j = 0; j < i; j++) {
+                String b = dnaStrings.get(j);
+                for (int k = 0; k < length; k++) {
+                    if (a.charAt(k) != b.charAt(k)) sum++;
+                }
+            }
+        }
+        return sum;
+    }
+}
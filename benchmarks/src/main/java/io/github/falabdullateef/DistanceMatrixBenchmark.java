@@ -0,0 +1,50 @@
+package io.github.falabdullateef;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Whole pairwise matrix (what {@code populateDistanceMatrix} used to do), by thread count. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class DistanceMatrixBenchmark {
+
+    @Param({"500", "2000"})
+    public int taxa;
+
+    @Param({"1000", "30000"})
+    public int length;
+
+    @Param({"1", "4"})
+    public int threads;
+
+    private Alignment alignment;
+    private TreeBuilder builder;
+
+    @Setup(Level.Trial)
+    public void generate() {
+        alignment = SyntheticAlignment.packedDna(taxa, length, BenchmarkSupport.SEED);
+        builder = new TreeBuilder().threads(threads).matrixBackend(MatrixBackend.HEAP, null);
+    }
+
+    @Benchmark
+    public Object distances() throws IOException {
+        return builder.distances(alignment);
+    }
+}
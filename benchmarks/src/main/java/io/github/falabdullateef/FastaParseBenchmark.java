@@ -0,0 +1,59 @@
+package io.github.falabdullateef;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** FASTA ingest: streaming packed reader vs. the String-per-record {@code parse}. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FastaParseBenchmark {
+
+    @Param({"100", "1000"})
+    public int taxa;
+
+    @Param({"1000", "30000"})
+    public int length;
+
+    private Path file;
+
+    @Setup(Level.Trial)
+    public void writeFile() throws IOException {
+        file = Files.createTempFile("bench-", ".fasta");
+        SyntheticAlignment.writeFasta(file, SyntheticAlignment.dna(taxa, length, BenchmarkSupport.SEED));
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteFile() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    @Benchmark
+    public Object readPacked() throws IOException {
+        return FastaReader.readPacked(file, false);
+    }
+
+    @Benchmark
+    public Object parse() throws IOException {
+        return FastaReader.parse(file.toString());
+    }
+}
@@ -0,0 +1,115 @@
+package io.github.falabdullateef;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Reproducible synthetic alignments for the benchmarks. A random root sequence is mutated down a
+ * random binary coalescent-like history, so sequences share structure the way real samples do
+ * (many near-identical pairs, a few distant ones). The same (taxa, length, seed) always produces
+ * the same alignment.
+ *
+ * <p>Run standalone to write a FASTA file:
+ * {@code java -cp benchmarks.jar io.github.falabdullateef.SyntheticAlignment out.fasta 1000 30000 42}
+ */
+final class SyntheticAlignment {
+    private SyntheticAlignment() {}
+
+    private static final char[] BASES = {'A', 'C', 'G', 'T'};
+    /** Expected substitutions per site along each branch. */
+    private static final double MUTATION_RATE = 0.002;
+    /** Share of sites written as N or gap, to exercise the ambiguity path. */
+    private static final double AMBIGUOUS_RATE = 0.001;
+
+    static List<String> dna(int taxa, int length, long seed) {
+        Random rnd = new Random(seed);
+        List<char[]> pool = new ArrayList<>();
+        char[] root = new char[length];
+        for (int k = 0; k < length; k++) root[k] = BASES[rnd.nextInt(4)];
+        pool.add(root);
+        // split a random lineage until there are enough of them, mutating both children
+        while (pool.size() < taxa) {
+            char[] parent = pool.remove(rnd.nextInt(pool.size()));
+            pool.add(mutate(parent, rnd));
+            pool.add(mutate(parent, rnd));
+        }
+        List<String> out = new ArrayList<>(taxa);
+        for (char[] seq : pool) {
+            for (int k = 0; k < length; k++) {
+                if (rnd.nextDouble() < AMBIGUOUS_RATE) seq[k] = rnd.nextBoolean() ? 'N' : '-';
+            }
+            out.add(new String(seq));
+        }
+        return out;
+    }
+
+    static List<String> binary(int taxa, int length, long seed) {
+        List<String> dna = dna(taxa, length, seed);
+        List<String> out = new ArrayList<>(taxa);
+        for (String s : dna) {
+            char[] bits = new char[length];
+            for (int k = 0; k < length; k++) bits[k] = s.charAt(k) == 'A' || s.charAt(k) == 'G' ? '1' : '0';
+            out.add(new String(bits));
+        }
+        return out;
+    }
+
+    static String[] names(int taxa) {
+        String[] names = new String[taxa];
+        for (int i = 0; i < taxa; i++) names[i] = "taxon" + i;
+        return names;
+    }
+
+    static Alignment packedDna(int taxa, int length, long seed) {
+        return new Alignment(names(taxa), PackedSequences.dna(dna(taxa, length, seed)));
+    }
+
+    /** Write a FASTA file with 60-column sequence lines. */
+    static void writeFasta(Path path, List<String> sequences) throws IOException {
+        try (BufferedWriter w = Files.newBufferedWriter(path, StandardCharsets.US_ASCII)) {
+            for (int i = 0; i < sequences.size(); i++) {
+                w.write(">taxon" + i + " synthetic\n");
+                String s = sequences.get(i);
+                for (int k = 0; k < s.length(); k += 60) {
+                    w.write(s, k, Math.min(60, s.length() - k));
+                    w.write('\n');
+                }
+            }
+        }
+    }
+
+    private static char[] mutate(char[] parent, Random rnd) {
+        char[] child = parent.clone();
+        int mutations = (int) Math.round(parent.length * MUTATION_RATE * (0.5 + rnd.nextDouble()));
+        for (int m = 0; m < mutations; m++) {
+            int site = rnd.nextInt(child.length);
+            child[site] = BASES[(indexOf(child[site]) + 1 + rnd.nextInt(3)) & 3];
+        }
+        return child;
+    }
+
+    private static int indexOf(char base) {
+        switch (base) {
+            case 'A': return 0;
+            case 'C': return 1;
+            case 'G': return 2;
+            default: return 3;
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 3) {
+            System.err.println("Usage: SyntheticAlignment <out.fasta> <taxa> <length> [seed]");
+            System.exit(2);
+        }
+        long seed = args.length > 3 ? Long.parseLong(args[3]) : 42L;
+        writeFasta(Paths.get(args[0]), dna(Integer.parseInt(args[1]), Integer.parseInt(args[2]), seed));
+    }
+}
@@ -0,0 +1,50 @@
+package io.github.falabdullateef;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** ASCII and Newick rendering of a UPGMA tree, written to a discarding writer. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TreePrintBenchmark {
+
+    @Param({"100", "1000"})
+    public int taxa;
+
+    private TreeNode root;
+    private Writer sink;
+
+    @Setup(Level.Trial)
+    public void buildTree() throws IOException {
+        root = new TreeBuilder().build(SyntheticAlignment.packedDna(taxa, 5000, BenchmarkSupport.SEED));
+        sink = Writer.nullWriter();
+    }
+
+    @Benchmark
+    public void ascii() throws IOException {
+        TreePrinter.print(root, sink);
+    }
+
+    @Benchmark
+    public void newick() throws IOException {
+        NewickWriter.write(root, sink);
+    }
+}
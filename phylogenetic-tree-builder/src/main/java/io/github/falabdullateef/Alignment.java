@@ -0,0 +1,17 @@
+package io.github.falabdullateef;
+
+/** Taxon names plus their packed, equal-length sequences (same order). */
+final class Alignment {
+    final String[] names;
+    final PackedSequences sequences;
+
+    Alignment(String[] names, PackedSequences sequences) {
+        if (names.length != sequences.count) {
+            throw new IllegalArgumentException(names.length + " names for " + sequences.count + " sequences");
+        }
+        this.names = names;
+        this.sequences = sequences;
+    }
+
+    int size() { return names.length; }
+}
@@ -0,0 +1,213 @@
+package io.github.falabdullateef;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.stream.IntStream;
+
+/**
+ * Bootstrap support for the clades of a reference tree.
+ *
+ * <p>Each replicate draws alignment columns as {@link SiteWeights}: a count per column, with the
+ * drawn columns gathered into a packed copy grouped by count (never as text). It builds a tree from
+ * the weighted distances and reports its clades.
+ * A clade is identified by the XOR of random 128-bit keys of its leaves, a hash of its leaf bitset
+ * that is built bottom-up in O(1) per node, so tallying a replicate costs O(n) lookups however
+ * large the clades are. For unrooted (Neighbor-Joining) trees a clade and its complement are the
+ * same split and hash alike; the two halves of the root edge count as one split, and splits that
+ * cut off a single leaf are trivially present in every tree and get no support value.
+ *
+ * <p>Replicates run concurrently, one per worker thread, each with its own distance matrix. Every
+ * replicate's random stream is derived from the seed up front, so results do not depend on the
+ * thread count.
+ */
+final class Bootstrap {
+    private Bootstrap() {}
+
+    /** Builds the tree of one replicate from its column weights. Called concurrently. */
+    interface ReplicateBuilder {
+        TreeNode build(SiteWeights weights) throws IOException;
+    }
+
+    private static final long KEY_SEED = 0x9E3779B97F4A7C15L;
+
+    /**
+     * Sets {@link TreeNode#support} (percent of replicates containing the clade) on every internal
+     * node of {@code root} below the root itself. {@code patterns} (may be null) lets replicates
+     * work on distinct variable columns only.
+     */
+    static void annotate(TreeNode root, Alignment alignment, SitePatterns patterns, int replicates, long seed,
+                         int threads, boolean unrooted, ReplicateBuilder builder) throws IOException {
+        if (replicates < 1) throw new IllegalArgumentException("replicates must be >= 1, got " + replicates);
+        int n = alignment.size();
+        Map<String, Integer> taxa = new HashMap<>(n * 2);
+        for (int i = 0; i < n; i++) taxa.put(alignment.names[i], i);
+        long[] keys = new long[2 * n];
+        SplittableRandom keyRandom = new SplittableRandom(KEY_SEED);
+        for (int k = 0; k < keys.length; k++) keys[k] = keyRandom.nextLong();
+        long total1 = 0, total2 = 0;
+        for (int i = 0; i < n; i++) {
+            total1 ^= keys[2 * i];
+            total2 ^= keys[2 * i + 1];
+        }
+        CladeHasher hasher = new CladeHasher(taxa, keys, unrooted, total1, total2);
+
+        List<TreeNode> clades = new ArrayList<>();
+        CladeTable table = new CladeTable(n);
+        hasher.hash(root, (node, h1, h2) -> {
+            if (table.get(h1, h2) < 0) {
+                table.put(h1, h2, clades.size());
+                clades.add(node);
+            }
+        });
+
+        long[] seeds = new long[replicates];
+        SplittableRandom seeder = new SplittableRandom(seed);
+        for (int r = 0; r < replicates; r++) seeds[r] = seeder.nextLong();
+
+        AtomicIntegerArray counts = new AtomicIntegerArray(clades.size());
+        PackedSequences seqs = alignment.sequences;
+        ForkJoinPool pool = new ForkJoinPool(Math.max(1, Math.min(threads, replicates)));
+        try {
+            pool.submit(() -> IntStream.range(0, replicates).parallel().forEach(r -> {
+                TreeNode tree;
+                try {
+                    tree = builder.build(SiteWeights.resample(seqs, patterns, new SplittableRandom(seeds[r])));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                hasher.hash(tree, (node, h1, h2) -> {
+                    int clade = table.get(h1, h2);
+                    if (clade >= 0) counts.incrementAndGet(clade);
+                });
+            })).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Bootstrap interrupted", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof UncheckedIOException) throw ((UncheckedIOException) cause).getCause();
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw new IllegalStateException(cause);
+        } finally {
+            pool.shutdown();
+        }
+
+        for (int c = 0; c < clades.size(); c++) {
+            clades.get(c).support = 100.0 * counts.get(c) / replicates;
+        }
+        if (unrooted && root.left != null && root.right != null && !root.right.isLeaf()) {
+            root.right.support = root.left.support;
+        }
+    }
+
+    private interface CladeVisitor {
+        void visit(TreeNode node, long h1, long h2);
+    }
+
+    /**
+     * Post-order walk that hands every internal node below the root its (canonical) 128-bit clade
+     * hash, skipping the splits described in the class comment for unrooted trees.
+     */
+    private static final class CladeHasher {
+        private final Map<String, Integer> taxa;
+        private final long[] keys;
+        private final boolean unrooted;
+        private final long total1, total2;
+
+        CladeHasher(Map<String, Integer> taxa, long[] keys, boolean unrooted, long total1, long total2) {
+            this.taxa = taxa;
+            this.keys = keys;
+            this.unrooted = unrooted;
+            this.total1 = total1;
+            this.total2 = total2;
+        }
+
+        void hash(TreeNode root, CladeVisitor visitor) {
+            // reverse of a (node, right, left) pre-order is a (left, right, node) post-order
+            List<TreeNode> order = new ArrayList<>();
+            List<TreeNode> stack = new ArrayList<>();
+            stack.add(root);
+            while (!stack.isEmpty()) {
+                TreeNode node = stack.remove(stack.size() - 1);
+                order.add(node);
+                if (node.left != null) stack.add(node.left);
+                if (node.right != null) stack.add(node.right);
+            }
+            int n = taxa.size();
+            long[] values = new long[2 * order.size()];
+            int[] sizes = new int[order.size()];
+            int top = 0;
+            for (int k = order.size() - 1; k >= 0; k--) {
+                TreeNode node = order.get(k);
+                long h1 = 0, h2 = 0;
+                int size = 0;
+                if (node.isLeaf()) {
+                    Integer taxon = taxa.get(node.label);
+                    if (taxon == null) throw new IllegalStateException("Unknown taxon in replicate: " + node.label);
+                    h1 = keys[2 * taxon];
+                    h2 = keys[2 * taxon + 1];
+                    size = 1;
+                } else {
+                    int children = (node.left != null ? 1 : 0) + (node.right != null ? 1 : 0);
+                    for (int c = 0; c < children; c++) {
+                        top--;
+                        h1 ^= values[2 * top];
+                        h2 ^= values[2 * top + 1];
+                        size += sizes[top];
+                    }
+                    if (!unrooted) {
+                        if (node != root) visitor.visit(node, h1, h2);
+                    } else if (node != root && size < n - 1 && !(node == root.right && !root.left.isLeaf())) {
+                        // a split and its complement are the same; keep the side with the smaller first word
+                        if (Long.compareUnsigned(h1 ^ total1, h1) < 0) visitor.visit(node, h1 ^ total1, h2 ^ total2);
+                        else visitor.visit(node, h1, h2);
+                    }
+                }
+                values[2 * top] = h1;
+                values[2 * top + 1] = h2;
+                sizes[top++] = size;
+            }
+        }
+    }
+
+    /** Open-addressing map from a 128-bit clade hash to a clade index; read-only once built. */
+    private static final class CladeTable {
+        private final long[] k1, k2;
+        private final int[] value; // clade index + 1, 0 = empty
+        private final int mask;
+
+        CladeTable(int taxa) {
+            int capacity = Integer.highestOneBit(Math.max(4, taxa) * 4 - 1);
+            k1 = new long[capacity];
+            k2 = new long[capacity];
+            value = new int[capacity];
+            mask = capacity - 1;
+        }
+
+        void put(long h1, long h2, int index) {
+            int slot = (int) (h2 ^ (h2 >>> 32)) & mask;
+            while (value[slot] != 0 && (k1[slot] != h1 || k2[slot] != h2)) slot = (slot + 1) & mask;
+            k1[slot] = h1;
+            k2[slot] = h2;
+            value[slot] = index + 1;
+        }
+
+        int get(long h1, long h2) {
+            int slot = (int) (h2 ^ (h2 >>> 32)) & mask;
+            while (value[slot] != 0) {
+                if (k1[slot] == h1 && k2[slot] == h2) return value[slot] - 1;
+                slot = (slot + 1) & mask;
+            }
+            return -1;
+        }
+    }
+}
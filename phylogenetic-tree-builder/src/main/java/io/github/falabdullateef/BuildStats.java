@@ -0,0 +1,147 @@
+package io.github.falabdullateef;
+
+import java.util.Locale;
+
+import jdk.jfr.FlightRecorder;
+
+/**
+ * Per-build counters and phase timings, filled in when passed to {@link TreeBuilder} and the
+ * readers; a null {@code BuildStats} disables collection. Phases and merges are also reported to
+ * Flight Recorder as {@link PhaseEvent}s and {@link MergeEvent}s, with or without a stats object.
+ *
+ * <p>Loading an event class costs the JVM a few hundred milliseconds of instrumentation, so event
+ * classes are only touched once Flight Recorder itself is up.
+ */
+final class BuildStats {
+
+    enum Phase {
+        PARSE("parse"), DEDUP("dedup"), CACHE("cache"), PATTERNS("patterns"), DISTANCES("distances"), SYMMETRIZE("symmetrize"),
+        CLUSTER("cluster"), PLACE("place"), BOOTSTRAP("bootstrap");
+
+        final String key;
+
+        Phase(String key) {
+            this.key = key;
+        }
+    }
+
+    private final long[] phaseNanos = new long[Phase.values().length];
+    String source;
+    String method;
+    String matrixBackend;
+    String matrixCache; // "hit" or "miss"; null without a cache
+    int taxa;
+    int uniqueTaxa; // distinct sequences clustered with deduplication; 0 without
+    long sites;
+    long sitePatterns; // distinct variable columns the distances were computed on
+    long distancePairs;
+    long clusterComparisons;
+    int merges;
+    long peakMatrixBytes;
+
+    static boolean flightRecorderRunning() {
+        return FlightRecorder.isInitialized();
+    }
+
+    /** A begun merge event, or null when Flight Recorder is not running. */
+    static MergeEvent beginMerge() {
+        if (!flightRecorderRunning()) return null;
+        MergeEvent event = new MergeEvent();
+        event.begin();
+        return event;
+    }
+
+    static void endMerge(MergeEvent event, int kept, int removed, int remaining, double height) {
+        if (event == null) return;
+        event.end();
+        if (event.shouldCommit()) {
+            event.kept = kept;
+            event.removed = removed;
+            event.remaining = remaining;
+            event.height = height;
+            event.commit();
+        }
+    }
+
+    /** Start timing a phase; {@code stats} may be null. Close the timer when the phase ends. */
+    static Timer time(BuildStats stats, Phase phase) {
+        return new Timer(stats, phase);
+    }
+
+    long phaseNanos(Phase phase) {
+        return phaseNanos[phase.ordinal()];
+    }
+
+    void matrixAllocated(DistanceMatrix matrix) {
+        peakMatrixBytes = Math.max(peakMatrixBytes, DistanceMatrix.triangleSize(matrix.size()) * Double.BYTES);
+    }
+
+    /** One JSON object; phases that did not run report 0. */
+    String toJson() {
+        StringBuilder sb = new StringBuilder(256);
+        sb.append('{');
+        if (source != null) sb.append("\"source\":").append(quote(source)).append(',');
+        if (method != null) sb.append("\"method\":").append(quote(method)).append(',');
+        if (matrixBackend != null) sb.append("\"matrixBackend\":").append(quote(matrixBackend)).append(',');
+        if (matrixCache != null) sb.append("\"matrixCache\":").append(quote(matrixCache)).append(',');
+        sb.append("\"taxa\":").append(taxa);
+        if (uniqueTaxa > 0) sb.append(",\"uniqueTaxa\":").append(uniqueTaxa);
+        sb.append(",\"sites\":").append(sites);
+        sb.append(",\"sitePatterns\":").append(sitePatterns);
+        sb.append(",\"phasesMs\":{");
+        for (Phase phase : Phase.values()) {
+            if (phase.ordinal() > 0) sb.append(',');
+            sb.append('"').append(phase.key).append("\":")
+                    .append(String.format(Locale.ROOT, "%.3f", phaseNanos(phase) / 1e6));
+        }
+        sb.append("},\"distancePairs\":").append(distancePairs);
+        sb.append(",\"clusterComparisons\":").append(clusterComparisons);
+        sb.append(",\"merges\":").append(merges);
+        sb.append(",\"peakMatrixBytes\":").append(peakMatrixBytes);
+        return sb.append('}').toString();
+    }
+
+    /** JSON string literal. */
+    static String quote(String s) {
+        StringBuilder sb = new StringBuilder(s.length() + 2).append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') sb.append('\\').append(c);
+            else if (c < 0x20) sb.append(String.format("\\u%04x", (int) c));
+            else sb.append(c);
+        }
+        return sb.append('"').toString();
+    }
+
+    /** Times one phase into the stats (if any) and a {@link PhaseEvent}. */
+    static final class Timer implements AutoCloseable {
+        private final BuildStats stats;
+        private final Phase phase;
+        private final long start = System.nanoTime();
+        private final PhaseEvent event;
+        private long items;
+
+        private Timer(BuildStats stats, Phase phase) {
+            this.stats = stats;
+            this.phase = phase;
+            this.event = flightRecorderRunning() ? new PhaseEvent() : null;
+            if (event != null) event.begin();
+        }
+
+        void items(long items) {
+            this.items = items;
+        }
+
+        @Override
+        public void close() {
+            if (stats != null) stats.phaseNanos[phase.ordinal()] += System.nanoTime() - start;
+            if (event == null) return;
+            event.end();
+            if (event.shouldCommit()) {
+                event.phase = phase.key;
+                event.items = items;
+                event.commit();
+            }
+        }
+    }
+}
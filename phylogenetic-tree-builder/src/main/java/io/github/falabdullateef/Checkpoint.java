@@ -0,0 +1,198 @@
+package io.github.falabdullateef;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Saved state of a clustering run part way through: the distance matrix after some number of
+ * merges, the size of every cluster (0 for retired IDs) and, for NJ, the engine's row sums and join
+ * steps, so the rest of the run repeats the uninterrupted one exactly. The tree built so far is not stored;
+ * it is the first {@link #merges} records of the run's {@link MergeLog}.
+ *
+ * <p>File layout, little-endian like {@link MatrixCache} entries: the magic {@code PTBCKPT1}, the
+ * taxon count, the length of the label block, the method, the length of the source key (ints), the
+ * merge count (long), the source key and the labels (int length + UTF-8 bytes each), the cluster
+ * sizes (ints), for NJ the join steps (ints), zero padding to a multiple of 8, for NJ the row sums
+ * (doubles), then the packed lower triangle. A checkpoint is
+ * written to a temporary file and moved over the previous one, so a crash mid-write leaves the
+ * previous checkpoint in place.
+ */
+final class Checkpoint {
+    private static final byte[] MAGIC = "PTBCKPT1".getBytes(StandardCharsets.US_ASCII);
+    private static final int HEADER_BYTES = MAGIC.length + 4 * Integer.BYTES + Long.BYTES;
+    private static final int CHUNK_CELLS = 1 << 16;
+
+    /** The matrix as of the checkpoint, detached from the file; retired IDs are inactive. */
+    final DistanceMatrix matrix;
+    /** Size of every cluster; 0 for retired IDs. */
+    final int[] sizes;
+    /** NJ's row sums ({@link NeighborJoiningEngine#rowSums}); null for the other methods. */
+    final double[] rowSums;
+    /** NJ's join step per cluster (0 for leaves); null for the other methods. */
+    final int[] born;
+    /** Merges done when the checkpoint was taken, i.e. merge log records to replay. */
+    final long merges;
+
+    private Checkpoint(DistanceMatrix matrix, int[] sizes, double[] rowSums, int[] born, long merges) {
+        this.matrix = matrix;
+        this.sizes = sizes;
+        this.rowSums = rowSums;
+        this.born = born;
+        this.merges = merges;
+    }
+
+    /**
+     * Saves {@code matrix}, {@code sizes} and (NJ only) {@code rowSums} and {@code born} after
+     * {@code merges} merges.
+     * {@code key} identifies the input the matrix came from and is checked again on {@link #load}.
+     */
+    static void write(Path file, String key, ClusterMethod method, DistanceMatrix matrix, int[] sizes, double[] rowSums,
+                      int[] born, long merges) throws IOException {
+        boolean nj = method == ClusterMethod.NJ;
+        if (nj != (rowSums != null) || nj != (born != null)) throw new IllegalArgumentException("Engine state is for NJ only");
+        int n = matrix.size();
+        if (key == null || key.isEmpty()) throw new IllegalArgumentException("A checkpoint needs the key of its input");
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        List<byte[]> labels = new ArrayList<>(n);
+        int labelBytes = 0;
+        for (int i = 0; i < n; i++) {
+            byte[] bytes = matrix.label(i).getBytes(StandardCharsets.UTF_8);
+            labels.add(bytes);
+            labelBytes += Integer.BYTES + bytes.length;
+        }
+        long offset = align(HEADER_BYTES + (long) keyBytes.length + labelBytes + (nj ? 2L : 1L) * n * Integer.BYTES)
+                + (nj ? (long) n * Double.BYTES : 0);
+        if (offset > Integer.MAX_VALUE) throw new IllegalArgumentException("Too many labels for a checkpoint");
+        long cells = DistanceMatrix.triangleSize(n);
+
+        Path dir = file.toAbsolutePath().getParent();
+        Files.createDirectories(dir);
+        Path tmp = Files.createTempFile(dir, file.getFileName().toString(), ".tmp");
+        try {
+            try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                ByteBuffer head = ByteBuffer.allocate((int) offset).order(ByteOrder.LITTLE_ENDIAN);
+                head.put(MAGIC).putInt(n).putInt(labelBytes).putInt(method.ordinal()).putInt(keyBytes.length).putLong(merges);
+                head.put(keyBytes);
+                for (byte[] bytes : labels) head.putInt(bytes.length).put(bytes);
+                for (int i = 0; i < n; i++) head.putInt(matrix.isActive(i) ? sizes[i] : 0);
+                if (nj) {
+                    for (int i = 0; i < n; i++) head.putInt(born[i]);
+                    head.position((int) (offset - (long) n * Double.BYTES));
+                    for (int i = 0; i < n; i++) head.putDouble(rowSums[i]);
+                }
+                head.position((int) offset);
+                head.flip();
+                writeFully(ch, head);
+                ByteBuffer buf = ByteBuffer.allocateDirect(CHUNK_CELLS * Double.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+                for (long start = 0; start < cells; start += CHUNK_CELLS) {
+                    long end = Math.min(cells, start + CHUNK_CELLS);
+                    buf.clear();
+                    for (long k = start; k < end; k++) buf.putDouble(matrix.getPacked(k));
+                    buf.flip();
+                    writeFully(ch, buf);
+                }
+                ch.force(false);
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    /**
+     * Reads the checkpoint in {@code file}, or returns null when there is none. A checkpoint of
+     * another method, other taxa or another input ({@code key}) is an error, as is one without a key.
+     * The matrix is opened through {@link TreeBuilder#mapCopy}, so resuming leaves the file intact.
+     */
+    static Checkpoint load(Path file, String key, ClusterMethod method, String[] labels, TreeBuilder builder)
+            throws IOException {
+        if (key == null || key.isEmpty()) throw new IllegalArgumentException("Resuming needs the key of the input");
+        if (!Files.isRegularFile(file)) return null;
+        int n = labels.length;
+        int[] sizes = new int[n];
+        boolean nj = method == ClusterMethod.NJ;
+        double[] rowSums = nj ? new double[n] : null;
+        int[] born = nj ? new int[n] : null;
+        long offset;
+        long merges;
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = ch.size();
+            ByteBuffer header = read(ch, 0, HEADER_BYTES, file);
+            byte[] magic = new byte[MAGIC.length];
+            header.get(magic);
+            if (!Arrays.equals(magic, MAGIC)) throw new IOException(file + ": not a checkpoint");
+            int count = header.getInt();
+            int labelBytes = header.getInt();
+            int m = header.getInt();
+            int keyBytes = header.getInt();
+            merges = header.getLong();
+            if (m != method.ordinal()) throw new IllegalArgumentException(file + ": checkpoint is from another clustering method");
+            if (count != n) throw new IllegalArgumentException(file + ": checkpoint is for " + count + " taxa, not " + n);
+            if (labelBytes < 0 || keyBytes < 0 || merges < 0 || merges >= Math.max(n, 1)) {
+                throw new IOException(file + ": damaged checkpoint");
+            }
+            long blockBytes = (long) keyBytes + labelBytes + (nj ? 2L : 1L) * n * Integer.BYTES;
+            if (blockBytes > Integer.MAX_VALUE - HEADER_BYTES) throw new IOException(file + ": damaged checkpoint");
+            long sumsAt = align(HEADER_BYTES + blockBytes);
+            offset = sumsAt + (nj ? (long) n * Double.BYTES : 0);
+            if (size != offset + DistanceMatrix.triangleSize(n) * Double.BYTES) throw new IOException(file + ": truncated checkpoint");
+
+            ByteBuffer block = read(ch, HEADER_BYTES, (int) blockBytes, file);
+            byte[] stored = new byte[keyBytes];
+            block.get(stored);
+            if (keyBytes == 0) throw new IllegalArgumentException(file + ": checkpoint does not record its input; cannot resume");
+            if (!key.equals(new String(stored, StandardCharsets.UTF_8))) {
+                throw new IllegalArgumentException(file + ": checkpoint is for another input");
+            }
+            for (String label : labels) {
+                int length = block.getInt();
+                if (length < 0 || length > block.remaining()) throw new IOException(file + ": damaged checkpoint");
+                byte[] bytes = new byte[length];
+                block.get(bytes);
+                if (!label.equals(new String(bytes, StandardCharsets.UTF_8))) {
+                    throw new IllegalArgumentException(file + ": checkpoint is for other taxa");
+                }
+            }
+            for (int i = 0; i < n; i++) sizes[i] = block.getInt();
+            if (nj) {
+                for (int i = 0; i < n; i++) born[i] = block.getInt();
+                read(ch, sumsAt, n * Double.BYTES, file).asDoubleBuffer().get(rowSums);
+            }
+        }
+        DistanceMatrix matrix = builder.mapCopy(labels, file, offset);
+        for (int i = 0; i < n; i++) {
+            if (sizes[i] <= 0) matrix.deactivate(i);
+        }
+        if (matrix.activeCount() != n - merges) {
+            matrix.close();
+            throw new IOException(file + ": damaged checkpoint");
+        }
+        return new Checkpoint(matrix, sizes, rowSums, born, merges);
+    }
+
+    private static ByteBuffer read(FileChannel ch, long position, int bytes, Path file) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(bytes).order(ByteOrder.LITTLE_ENDIAN);
+        while (buf.hasRemaining()) {
+            if (ch.read(buf, position + buf.position()) < 0) throw new IOException(file + ": truncated checkpoint");
+        }
+        return buf.flip();
+    }
+
+    private static void writeFully(FileChannel ch, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) ch.write(buf);
+    }
+
+    private static long align(long bytes) {
+        return (bytes + Long.BYTES - 1) & -Long.BYTES;
+    }
+}
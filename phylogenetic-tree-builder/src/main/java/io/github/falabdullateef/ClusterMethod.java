@@ -0,0 +1,22 @@
+package io.github.falabdullateef;
+
+import java.util.Locale;
+
+/** Tree-building algorithm. */
+enum ClusterMethod {
+    /** Average linkage weighted by cluster size; assumes a molecular clock. */
+    UPGMA,
+    /** Average linkage with equal cluster weights; assumes a molecular clock. */
+    WPGMA,
+    /** Neighbor-Joining; no clock assumption, unrooted branch lengths (rooted at the last join). */
+    NJ;
+
+    static ClusterMethod parse(String s) {
+        switch (s.trim().toLowerCase(Locale.ROOT)) {
+            case "u": case "upgma": return UPGMA;
+            case "w": case "wpgma": return WPGMA;
+            case "n": case "nj": case "neighbor-joining": return NJ;
+            default: throw new IllegalArgumentException("Unknown method: " + s);
+        }
+    }
+}
@@ -0,0 +1,332 @@
+package io.github.falabdullateef;
+
+import java.util.Arrays;
+
+/**
+ * UPGMA/WPGMA agglomerative clustering that repeatedly merges the globally closest pair. Each
+ * cluster caches the front of its row in merge order and the clusters sit in a heap ordered by
+ * those fronts (the "generic" algorithm of Muellner, 2011).
+ *
+ * Ties are broken as the original closest-pair scan over sorted names broke them: among pairs at
+ * the minimum distance, the one whose smaller display name sorts first wins, then the one whose
+ * larger name does. Display names depend only on the labels, so the tree does not depend on the
+ * input order.
+ *
+ * A merge leaves a cached row valid unless it held one of the merged clusters; keeping a few
+ * candidates per row means losing the nearest one usually just promotes the next. Both linkages
+ * only ever raise distances to the merged cluster above the smaller of the two old ones, so a row
+ * whose candidates run out keeps its old minimum as a lower bound and is rescanned only once it
+ * reaches the top of the heap. That keeps a run close to O(n^2) in practice; the worst case is
+ * O(n^3). The merged cluster keeps the ID of one member and the other is retired.
+ */
+final class ClusteringEngine {
+
+    /** Callback after each merge; {@code kept} now holds the merged cluster. */
+    interface MergeListener {
+        void merged(int kept, int removed, TreeNode node);
+    }
+
+    private static final int CANDIDATES = 4;
+
+    private final DistanceMatrix matrix;
+    private final TreeNode[] nodes;
+    private final int[] sizes;
+    private final boolean useUPGMA;
+    private MergeListener listener;
+    private long comparisons;
+    // Per cluster: a prefix of its row in merge order, up to CANDIDATES long, and the distance of
+    // its head. A row whose prefix ran out is stale and nearestD only bounds its distances from below.
+    private int[] candidates;
+    private double[] candidateD;
+    private int[] count;
+    private double[] nearestD;
+    // Distances to the last merged cluster, kept by merge so the update pass reads them in order
+    private double[] mergedRow;
+    // Per cluster: depth of its left spine and the label at its bottom, which start its display name.
+    private int[] opens;
+    private String[] firstLabel;
+    // Active clusters as a binary heap ordered by their next merge, and each cluster's slot (-1 if out).
+    private int[] heap;
+    private int[] heapIndex;
+    private int heapSize;
+
+    ClusteringEngine(DistanceMatrix matrix, TreeNode[] nodes, int[] sizes, boolean useUPGMA) {
+        this.matrix = matrix;
+        this.nodes = nodes;
+        this.sizes = sizes;
+        this.useUPGMA = useUPGMA;
+    }
+
+    ClusteringEngine onMerge(MergeListener listener) {
+        this.listener = listener;
+        return this;
+    }
+
+    /** Candidate distances examined so far by the nearest-neighbor search. */
+    long comparisons() {
+        return comparisons;
+    }
+
+    /** Cluster until one cluster is left and return its tree. */
+    TreeNode run() {
+        int n = matrix.size();
+        candidates = new int[n * CANDIDATES];
+        candidateD = new double[n * CANDIDATES];
+        count = new int[n];
+        nearestD = new double[n];
+        heap = new int[n];
+        heapIndex = new int[n];
+        mergedRow = new double[n];
+        opens = new int[n];
+        firstLabel = new String[n];
+        for (int i = 0; i < n; i++) {
+            if (!matrix.isActive(i)) continue;
+            TreeNode node = nodes[i];
+            for (; !node.isLeaf(); node = node.left) opens[i]++;
+            firstLabel[i] = node.label;
+        }
+        int[] pending = new int[n];
+        if (matrix.activeCount() > 1) {
+            // Row by row the packed triangle is read in storage order, each distance offered to both ends
+            for (int i = 0; i < n; i++) {
+                if (!matrix.isActive(i)) continue;
+                for (int j = 0; j < i; j++) {
+                    if (!matrix.isActive(j)) continue;
+                    comparisons++;
+                    double d = matrix.get(i, j);
+                    offer(i, j, d, true);
+                    offer(j, i, d, true);
+                }
+            }
+            heapify();
+        }
+        while (matrix.activeCount() > 1) {
+            int a = heap[0];
+            if (count[a] == 0) {
+                scan(a);
+                siftDown(0);
+                continue;
+            }
+            int b = candidates[a * CANDIDATES];
+            // Rows headed by a or b change keys with the merge, so they leave the heap while it is consistent
+            int held = 0;
+            for (int c = 0; c < n; c++) {
+                if (!matrix.isActive(c)) continue;
+                int head = count[c] > 0 ? candidates[c * CANDIDATES] : -1;
+                if (c == a || c == b || head == a || head == b) {
+                    remove(c);
+                    pending[held++] = c;
+                }
+            }
+            int kept = merge(a, b);
+            if (matrix.activeCount() == 1) break;
+            count[kept] = 0;
+            for (int c = 0; c < n; c++) {
+                if (c == kept || !matrix.isActive(c)) continue;
+                comparisons++;
+                double d = mergedRow[c];
+                offer(kept, c, d, true);
+                if (count[c] > 0) {
+                    drop(c, a, b);
+                    if (count[c] > 0) offer(c, kept, d, false);
+                    // a row still in the heap only changes key by gaining kept as a closer head
+                    if (heapIndex[c] >= 0 && candidates[c * CANDIDATES] == kept) siftUp(heapIndex[c]);
+                }
+            }
+            for (int k = 0; k < held; k++) {
+                if (matrix.isActive(pending[k])) push(pending[k]);
+            }
+        }
+        return nodes[firstActive(0)];
+    }
+
+    /** Rescans row a once its cached prefix has run out. */
+    private void scan(int a) {
+        count[a] = 0;
+        comparisons += matrix.activeCount() - 1;
+        for (int c = 0; c < matrix.size(); c++) {
+            if (c != a && matrix.isActive(c)) offer(a, c, matrix.get(a, c), true);
+        }
+    }
+
+    /**
+     * Inserts cluster c at distance d into row a's prefix. Past the end of the prefix it is only
+     * appended while the whole row is being offered, since otherwise closer unseen clusters may exist.
+     */
+    private void offer(int a, int c, double d, boolean wholeRow) {
+        int base = a * CANDIDATES;
+        int k = count[a];
+        while (k > 0 && before(d, a, c, candidateD[base + k - 1], a, candidates[base + k - 1])) k--;
+        if (k == count[a] && (!wholeRow || k == CANDIDATES)) return;
+        int last = Math.min(count[a], CANDIDATES - 1);
+        System.arraycopy(candidates, base + k, candidates, base + k + 1, last - k);
+        System.arraycopy(candidateD, base + k, candidateD, base + k + 1, last - k);
+        candidates[base + k] = c;
+        candidateD[base + k] = d;
+        count[a] = last + 1;
+        nearestD[a] = candidateD[base];
+    }
+
+    /** Removes the merged clusters x and y from row c's prefix; what is left is still a prefix of the row. */
+    private void drop(int c, int x, int y) {
+        int base = c * CANDIDATES;
+        int kept = 0;
+        for (int k = 0; k < count[c]; k++) {
+            int id = candidates[base + k];
+            if (id == x || id == y) continue;
+            candidates[base + kept] = id;
+            candidateD[base + kept] = candidateD[base + k];
+            kept++;
+        }
+        count[c] = kept;
+        // An emptied row keeps its old head distance: merging never brings clusters closer
+        if (kept > 0) nearestD[c] = candidateD[base];
+    }
+
+    /** Whether row i's next merge comes before row j's; at equal bounds a stale row goes first so it is rescanned. */
+    private boolean precedes(int i, int j) {
+        if (nearestD[i] != nearestD[j]) return nearestD[i] < nearestD[j];
+        if (count[i] == 0 || count[j] == 0) return count[i] == 0 && (count[j] > 0 || i < j);
+        return before(nearestD[i], i, candidates[i * CANDIDATES], nearestD[j], j, candidates[j * CANDIDATES]);
+    }
+
+    private void heapify() {
+        heapSize = 0;
+        Arrays.fill(heapIndex, -1);
+        for (int i = 0; i < matrix.size(); i++) {
+            if (matrix.isActive(i)) {
+                heapIndex[i] = heapSize;
+                heap[heapSize++] = i;
+            }
+        }
+        for (int k = heapSize / 2 - 1; k >= 0; k--) siftDown(k);
+    }
+
+    private void push(int c) {
+        heap[heapSize] = c;
+        heapIndex[c] = heapSize;
+        siftUp(heapSize++);
+    }
+
+    private void remove(int c) {
+        int k = heapIndex[c];
+        int last = heap[--heapSize];
+        heapIndex[c] = -1;
+        if (k == heapSize) return;
+        heap[k] = last;
+        heapIndex[last] = k;
+        if (k > 0 && precedes(last, heap[(k - 1) / 2])) {
+            siftUp(k);
+        } else {
+            siftDown(k);
+        }
+    }
+
+    private void siftUp(int k) {
+        int c = heap[k];
+        while (k > 0) {
+            int parent = (k - 1) / 2;
+            if (!precedes(c, heap[parent])) break;
+            heap[k] = heap[parent];
+            heapIndex[heap[k]] = k;
+            k = parent;
+        }
+        heap[k] = c;
+        heapIndex[c] = k;
+    }
+
+    private void siftDown(int k) {
+        int c = heap[k];
+        while (true) {
+            int child = 2 * k + 1;
+            if (child >= heapSize) break;
+            if (child + 1 < heapSize && precedes(heap[child + 1], heap[child])) child++;
+            if (!precedes(heap[child], c)) break;
+            heap[k] = heap[child];
+            heapIndex[heap[k]] = k;
+            k = child;
+        }
+        heap[k] = c;
+        heapIndex[c] = k;
+    }
+
+    /** Whether pair (a1, b1) at distance d1 is merged before pair (a2, b2) at d2: closer, then by names. */
+    private boolean before(double d1, int a1, int b1, double d2, int a2, int b2) {
+        if (d1 != d2) return d1 < d2;
+        int lo1 = compareNames(a1, b1) <= 0 ? a1 : b1;
+        int lo2 = compareNames(a2, b2) <= 0 ? a2 : b2;
+        int order = lo1 == lo2 ? 0 : compareNames(lo1, lo2);
+        if (order != 0) return order < 0;
+        int hi1 = lo1 == a1 ? b1 : a1;
+        int hi2 = lo2 == a2 ? b2 : a2;
+        return hi1 != hi2 && compareNames(hi1, hi2) < 0;
+    }
+
+    /**
+     * Compares the display names of clusters x and y. A name opens with one '(' per level of its left
+     * spine and then its leftmost label, which settles nearly every comparison without walking the
+     * spine; deep caterpillars would make every tie-break linear otherwise.
+     */
+    private int compareNames(int x, int y) {
+        String fx = firstLabel[x];
+        String fy = firstLabel[y];
+        if (opens[x] < opens[y] && !fx.isEmpty() && fx.charAt(0) != '(') return fx.charAt(0) - '(';
+        if (opens[y] < opens[x] && !fy.isEmpty() && fy.charAt(0) != '(') return '(' - fy.charAt(0);
+        if (opens[x] == opens[y]) {
+            for (int i = 0; i < Math.min(fx.length(), fy.length()); i++) {
+                if (fx.charAt(i) != fy.charAt(i)) return fx.charAt(i) - fy.charAt(i);
+            }
+        }
+        return TreeNode.compareNames(nodes[x], nodes[y]);
+    }
+
+    /** Merges clusters x and y and returns the ID the merged cluster keeps. */
+    private int merge(int x, int y) {
+        MergeEvent event = BuildStats.beginMerge();
+        // Children are ordered by display name so output matches the old closest-pair loop
+        int species1 = compareNames(x, y) <= 0 ? x : y;
+        int species2 = species1 == x ? y : x;
+        int size1 = sizes[species1];
+        int size2 = sizes[species2];
+
+        TreeNode newNode = new TreeNode(nodes[species1], nodes[species2]);
+        // Height (UPGMA style): half the distance between children. For WPGMA we still show same convention.
+        newNode.height = matrix.get(species1, species2) / 2.0;
+        newNode.left.branchLength = newNode.height - newNode.left.height;
+        newNode.right.branchLength = newNode.height - newNode.right.height;
+
+        // The merged cluster takes over species1's ID; species2's ID is retired.
+        for (int other = 0; other < matrix.size(); other++) {
+            if (other == species1 || other == species2 || !matrix.isActive(other)) continue;
+            double d1 = matrix.get(species1, other);
+            double d2 = matrix.get(species2, other);
+            double newDistance;
+            if (useUPGMA) {
+                newDistance = ((size1 * d1) + (size2 * d2)) / (size1 + size2);
+            } else {
+                newDistance = (d1 + d2) / 2.0; // WPGMA
+            }
+            matrix.set(species1, other, newDistance);
+            mergedRow[other] = newDistance;
+        }
+
+        matrix.deactivate(species2);
+        nodes[species1] = newNode;
+        opens[species1]++; // species1's node is the new left child
+        nodes[species2] = null;
+        sizes[species1] = size1 + size2;
+        sizes[species2] = 0;
+
+        BuildStats.endMerge(event, species1, species2, matrix.activeCount(), newNode.height);
+
+        if (listener != null) listener.merged(species1, species2, newNode);
+        return species1;
+    }
+
+    private int firstActive(int from) {
+        for (int id = from; id < matrix.size(); id++) {
+            if (matrix.isActive(id)) return id;
+        }
+        throw new IllegalStateException("No clusters left");
+    }
+}
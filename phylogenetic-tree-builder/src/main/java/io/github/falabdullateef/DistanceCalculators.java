@@ -1,23 +1,177 @@
 package io.github.falabdullateef;
 
-import java.util.List;
-
 final class DistanceCalculators {
     private DistanceCalculators() {}
 
-    static double hammingDNA(String seq1, String seq2) {
-        double distance = 0;
-        for (int i = 0; i < seq1.length(); i++) {
-            if (seq1.charAt(i) != seq2.charAt(i)) distance++;
+    private static final long EVEN_BITS = 0x5555555555555555L;
+
+    /** Mismatching sites between DNA sequences i and j, 32 sites per XOR + popcount. */
+    static double hammingDNA(PackedSequences seqs, int i, int j) {
+        long[] bits = seqs.bits;
+        int words = seqs.words;
+        int oi = i * words, oj = j * words;
+        long distance = 0;
+        if (seqs.masks == null || (!seqs.hasOddSites(i) && !seqs.hasOddSites(j))) {
+            for (int w = 0; w < words; w++) {
+                long x = bits[oi + w] ^ bits[oj + w];
+                distance += Long.bitCount((x | (x >>> 1)) & EVEN_BITS);
+            }
+        } else {
+            // every site masked on either side counts as a mismatch; then give back identical odd characters
+            long[] masks = seqs.masks;
+            for (int w = 0; w < words; w++) {
+                long x = bits[oi + w] ^ bits[oj + w];
+                distance += Long.bitCount(((x | (x >>> 1)) & EVEN_BITS) | masks[oi + w] | masks[oj + w]);
+            }
+            distance -= seqs.sharedOddSites(i, j);
         }
         return distance;
     }
 
-    static double hammingBinary(String v1, String v2) {
-        double dist = 0;
-        for (int i = 0; i < v1.length(); i++) {
-            if (v1.charAt(i) != v2.charAt(i)) dist++;
+    /** Weighted mismatch count between DNA sequences i and j (see {@link SiteWeights}). */
+    static double hammingDNA(SiteWeights weighted, int i, int j) {
+        PackedSequences seqs = weighted.packed;
+        int[] groupEnds = weighted.groupEnds;
+        int[] groupWeights = weighted.groupWeights;
+        long[] bits = seqs.bits;
+        int words = seqs.words;
+        int oi = i * words, oj = j * words;
+        long distance = 0;
+        if (seqs.masks == null || (!seqs.hasOddSites(i) && !seqs.hasOddSites(j))) {
+            for (int g = 0, w = 0; g < groupEnds.length; g++) {
+                long count = 0;
+                for (int end = groupEnds[g]; w < end; w++) {
+                    long x = bits[oi + w] ^ bits[oj + w];
+                    count += Long.bitCount((x | (x >>> 1)) & EVEN_BITS);
+                }
+                distance += count * groupWeights[g];
+            }
+        } else {
+            long[] masks = seqs.masks;
+            for (int g = 0, w = 0; g < groupEnds.length; g++) {
+                long count = 0;
+                for (int end = groupEnds[g]; w < end; w++) {
+                    long x = bits[oi + w] ^ bits[oj + w];
+                    count += Long.bitCount(((x | (x >>> 1)) & EVEN_BITS) | masks[oi + w] | masks[oj + w]);
+                }
+                distance += count * groupWeights[g];
+            }
+            distance -= seqs.sharedOddSites(i, j, weighted.wordWeights);
+        }
+        return distance;
+    }
+
+    /**
+     * Corrected distance between DNA sequences i and j from one pass over the packed words. With
+     * A=00, C=01, G=10, T=11, a transversion flips the low bit of a site and a transition (A-G, C-T)
+     * only the high one, so each word yields transitions, transversions and the sites excluded by
+     * a gap or ambiguity code on either side in three popcounts.
+     */
+    static double substitutions(PackedSequences seqs, int i, int j, DistanceMetric metric) {
+        long[] bits = seqs.bits;
+        long[] masks = seqs.masks;
+        int words = seqs.words;
+        int oi = i * words, oj = j * words;
+        long transitions = 0, transversions = 0, excluded = 0;
+        if (masks == null || (!seqs.hasOddSites(i) && !seqs.hasOddSites(j))) {
+            for (int w = 0; w < words; w++) {
+                long x = bits[oi + w] ^ bits[oj + w];
+                transversions += Long.bitCount(x & EVEN_BITS);
+                transitions += Long.bitCount((x >>> 1) & ~x & EVEN_BITS);
+            }
+        } else {
+            for (int w = 0; w < words; w++) {
+                long x = bits[oi + w] ^ bits[oj + w];
+                long valid = ~(masks[oi + w] | masks[oj + w]) & EVEN_BITS;
+                transversions += Long.bitCount(x & valid);
+                transitions += Long.bitCount((x >>> 1) & ~x & valid);
+                excluded += Long.bitCount(~valid & EVEN_BITS);
+            }
+        }
+        return metric.distance(transitions, transversions, seqs.length - excluded);
+    }
+
+    /** As {@link #substitutions(PackedSequences, int, int, DistanceMetric)}, with weighted columns. */
+    static double substitutions(SiteWeights weighted, int i, int j, DistanceMetric metric) {
+        PackedSequences seqs = weighted.packed;
+        int[] groupEnds = weighted.groupEnds;
+        int[] groupWeights = weighted.groupWeights;
+        long[] bits = seqs.bits;
+        long[] masks = seqs.masks;
+        int words = seqs.words;
+        int oi = i * words, oj = j * words;
+        long transitions = 0, transversions = 0, excluded = 0;
+        boolean plain = masks == null || (!seqs.hasOddSites(i) && !seqs.hasOddSites(j));
+        for (int g = 0, w = 0; g < groupEnds.length; g++) {
+            long ts = 0, tv = 0, ex = 0;
+            for (int end = groupEnds[g]; w < end; w++) {
+                long x = bits[oi + w] ^ bits[oj + w];
+                // padding columns are zero in bits and masks, so they never count as excluded
+                long valid = plain ? EVEN_BITS : ~(masks[oi + w] | masks[oj + w]) & EVEN_BITS;
+                tv += Long.bitCount(x & valid);
+                ts += Long.bitCount((x >>> 1) & ~x & valid);
+                ex += Long.bitCount(~valid & EVEN_BITS);
+            }
+            transitions += ts * groupWeights[g];
+            transversions += tv * groupWeights[g];
+            excluded += ex * groupWeights[g];
         }
+        return metric.distance(transitions, transversions, weighted.totalWeight - excluded);
+    }
+
+    /** Differing characters between presence/absence vectors i and j, 64 per XOR + popcount. */
+    static double hammingBinary(PackedSequences vectors, int i, int j) {
+        long[] bits = vectors.bits;
+        int words = vectors.words;
+        int oi = i * words, oj = j * words;
+        long dist = 0;
+        for (int w = 0; w < words; w++) dist += Long.bitCount(bits[oi + w] ^ bits[oj + w]);
         return dist;
     }
+
+    /** Weighted count of differing characters between presence/absence vectors i and j. */
+    static double hammingBinary(SiteWeights weighted, int i, int j) {
+        PackedSequences vectors = weighted.packed;
+        int[] groupEnds = weighted.groupEnds;
+        long[] bits = vectors.bits;
+        int words = vectors.words;
+        int oi = i * words, oj = j * words;
+        long dist = 0;
+        for (int g = 0, w = 0; g < groupEnds.length; g++) {
+            long count = 0;
+            for (int end = groupEnds[g]; w < end; w++) count += Long.bitCount(bits[oi + w] ^ bits[oj + w]);
+            dist += count * weighted.groupWeights[g];
+        }
+        return dist;
+    }
+
+    /**
+     * Mash distance between sketched sequences i and j: the Jaccard index J of their k-mer sets is
+     * estimated from the {@code size} smallest hashes of the union of both sketches, and
+     * D = -ln(2J / (1 + J)) / k, an estimate of the per-base mutation rate. No shared k-mers gives 1.
+     */
+    static double mash(MinHashSketches sketches, int i, int j) {
+        long[] hashes = sketches.hashes;
+        int size = sketches.size;
+        int a = i * size, aEnd = a + sketches.lengths[i];
+        int b = j * size, bEnd = b + sketches.lengths[j];
+        int union = 0, shared = 0;
+        while (union < size && a < aEnd && b < bEnd) {
+            long x = hashes[a], y = hashes[b];
+            if (x == y) {
+                shared++;
+                a++;
+                b++;
+            } else if (x < y) {
+                a++;
+            } else {
+                b++;
+            }
+            union++;
+        }
+        union += Math.min(size - union, (aEnd - a) + (bEnd - b));
+        if (shared == 0) return 1.0;
+        double jaccard = (double) shared / union;
+        return Math.min(1.0, -Math.log(2 * jaccard / (1 + jaccard)) / sketches.k);
+    }
 }
@@ -0,0 +1,70 @@
+package io.github.falabdullateef;
+
+/**
+ * Symmetric distance matrix indexed by int cluster IDs. Only the strict lower triangle is stored
+ * (row-major: (1,0), (2,0), (2,1), ...); the diagonal is implicitly 0. Taxon labels are kept on the
+ * side for the initial IDs only; merged-away clusters are marked inactive instead of being removed.
+ */
+abstract class DistanceMatrix implements java.io.Closeable {
+    private final String[] labels;
+    private final boolean[] active;
+    private int activeCount;
+
+    /**
+     * The matrix keeps {@code labels} itself rather than a copy, so a reader can allocate the
+     * matrix first and fill in each taxon's label as its row arrives.
+     */
+    DistanceMatrix(String[] labels) {
+        this.labels = labels;
+        this.active = new boolean[labels.length];
+        java.util.Arrays.fill(active, true);
+        this.activeCount = labels.length;
+    }
+
+    /** Number of cluster IDs (active or not). */
+    final int size() { return labels.length; }
+
+    final int activeCount() { return activeCount; }
+
+    final boolean isActive(int id) { return active[id]; }
+
+    final void deactivate(int id) {
+        if (active[id]) {
+            active[id] = false;
+            activeCount--;
+        }
+    }
+
+    /** Label of the taxon that started out with this ID (merged clusters keep one member's ID). */
+    final String label(int id) { return labels[id]; }
+
+    /** A copy of all labels, by ID. */
+    final String[] labels() { return labels.clone(); }
+
+    final double get(int i, int j) {
+        if (i == j) return 0.0;
+        return getPacked(index(i, j));
+    }
+
+    final void set(int i, int j, double d) {
+        if (i == j) return; // diagonal is implicit
+        setPacked(index(i, j), d);
+    }
+
+    /** Position of (i,j) in the packed lower triangle; order of i and j does not matter. */
+    static long index(int i, int j) {
+        if (i < j) { int t = i; i = j; j = t; }
+        return (long) i * (i - 1) / 2 + j;
+    }
+
+    /** Number of stored cells for n taxa. */
+    static long triangleSize(int n) { return (long) n * (n - 1) / 2; }
+
+    abstract double getPacked(long index);
+
+    abstract void setPacked(long index, double d);
+
+    /** Release backing storage; a no-op for in-heap matrices. */
+    @Override
+    public void close() throws java.io.IOException {}
+}
@@ -0,0 +1,94 @@
+package io.github.falabdullateef;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Fills a {@link DistanceMatrix} from a pairwise kernel, computing each unordered pair once.
+ * The triangle is cut into square tiles of {@code tile x tile} pairs so the rows of both
+ * sequences in a tile stay in cache, and tiles are spread over a {@link ForkJoinPool}.
+ * Every cell is produced by the same kernel call whichever thread runs it, so the result is
+ * bit-identical to the single-threaded path.
+ */
+final class DistanceMatrixBuilder {
+    private DistanceMatrixBuilder() {}
+
+    /** Distance between taxa i and j; must be a pure function of its arguments. */
+    interface PairKernel {
+        double distance(int i, int j);
+    }
+
+    private static final int L2_BUDGET_BYTES = 256 * 1024;
+
+    /** Tile edge so that two tiles' worth of sequences (of the given word count) fit in ~256 KB. */
+    static int tileSize(int wordsPerSequence) {
+        int bytesPerSeq = Math.max(1, wordsPerSequence) * Long.BYTES;
+        return Math.max(8, Math.min(256, L2_BUDGET_BYTES / (2 * bytesPerSeq)));
+    }
+
+    static void fill(DistanceMatrix matrix, PairKernel kernel, int tile, int threads) {
+        int n = matrix.size();
+        if (threads <= 1 || n < 2 * tile) {
+            fillSequential(matrix, kernel);
+            return;
+        }
+        int blocks = (n + tile - 1) / tile;
+        long tileCount = (long) blocks * (blocks + 1) / 2;
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            pool.invoke(new TileRange(matrix, kernel, tile, 0, tileCount));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /** Single-threaded fallback, row by row. */
+    static void fillSequential(DistanceMatrix matrix, PairKernel kernel) {
+        for (int i = 0; i < matrix.size(); i++) {
+            for (int j = 0; j < i; j++) matrix.set(i, j, kernel.distance(i, j));
+        }
+    }
+
+    private static final class TileRange extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final DistanceMatrix matrix;
+        private final PairKernel kernel;
+        private final int tile;
+        private final long lo, hi;
+
+        TileRange(DistanceMatrix matrix, PairKernel kernel, int tile, long lo, long hi) {
+            this.matrix = matrix;
+            this.kernel = kernel;
+            this.tile = tile;
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        @Override
+        protected void compute() {
+            if (hi - lo <= 1) {
+                runTile(lo);
+                return;
+            }
+            long mid = (lo + hi) >>> 1;
+            invokeAll(new TileRange(matrix, kernel, tile, lo, mid), new TileRange(matrix, kernel, tile, mid, hi));
+        }
+
+        // tile t covers block row bi, block column bj <= bi, enumerated row by row
+        private void runTile(long t) {
+            int bi = (int) ((Math.sqrt(8.0 * t + 1) - 1) / 2);
+            while ((long) bi * (bi + 1) / 2 > t) bi--;
+            while ((long) (bi + 1) * (bi + 2) / 2 <= t) bi++;
+            int bj = (int) (t - (long) bi * (bi + 1) / 2);
+            int n = matrix.size();
+            int iEnd = Math.min(n, (bi + 1) * tile);
+            int jStart = bj * tile;
+            int jEnd = Math.min(n, (bj + 1) * tile);
+            for (int i = bi * tile; i < iEnd; i++) {
+                int jLimit = Math.min(jEnd, i); // diagonal tiles only cover j < i
+                for (int j = jStart; j < jLimit; j++) matrix.set(i, j, kernel.distance(i, j));
+            }
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package io.github.falabdullateef;
+
+import java.util.Locale;
+
+/**
+ * Pairwise distance between sequences. HAMMING is the raw mismatch count over all columns (raw
+ * characters compared, so two gaps match). The others are per-site DNA distances with pairwise
+ * deletion: a column only counts for a pair when both sequences hold A, C, G or T there.
+ * Saturated pairs, and pairs with no comparable column, get the metric's {@link #ceiling()}:
+ * the clustering engines need finite distances (an infinite one turns UPGMA heights and every NJ
+ * Q value into NaN).
+ */
+enum DistanceMetric {
+    HAMMING("hamming"),
+    /** Proportion of differing sites. */
+    P("p"),
+    /** Jukes-Cantor 1969: -3/4 ln(1 - 4p/3). */
+    JC69("jc69"),
+    /** Kimura 2-parameter: -1/2 ln(1 - 2P - Q) - 1/4 ln(1 - 2Q), P transitions and Q transversions per site. */
+    K2P("k2p");
+
+    /** Cap on JC69 and K2P distances, in substitutions per site; p-distances never exceed 1. */
+    static final double MAX_CORRECTED = 3.0;
+
+    final String key;
+
+    DistanceMetric(String key) {
+        this.key = key;
+    }
+
+    static DistanceMetric parse(String s) {
+        String k = s.trim().toLowerCase(Locale.ROOT);
+        for (DistanceMetric metric : values()) {
+            if (metric.key.equals(k)) return metric;
+        }
+        throw new IllegalArgumentException("Unknown distance: " + s);
+    }
+
+    /** Name of the metric on an encoding, part of the matrix cache key. */
+    String cacheKey(boolean binary) {
+        return key + (binary ? "-binary" : "-dna");
+    }
+
+    /** Largest distance this metric reports (not for HAMMING, which is a plain count). */
+    double ceiling() {
+        return this == P ? 1.0 : MAX_CORRECTED;
+    }
+
+    /**
+     * Distance from substitution counts over {@code valid} compared sites (not for HAMMING), at most
+     * {@link #ceiling()}.
+     */
+    double distance(long transitions, long transversions, long valid) {
+        if (valid <= 0) return ceiling();
+        double p = (double) (transitions + transversions) / valid;
+        switch (this) {
+            case P:
+                return p;
+            case JC69: {
+                double arg = 1 - 4 * p / 3;
+                return arg > 0 ? Math.min(MAX_CORRECTED, 0.0 - 0.75 * Math.log(arg)) : MAX_CORRECTED; // 0.0 - x avoids -0.0
+            }
+            case K2P: {
+                double ts = (double) transitions / valid, tv = (double) transversions / valid;
+                double a = 1 - 2 * ts - tv, b = 1 - 2 * tv;
+                return a > 0 && b > 0 ? Math.min(MAX_CORRECTED, 0.0 - 0.5 * Math.log(a) - 0.25 * Math.log(b)) : MAX_CORRECTED;
+            }
+            default:
+                throw new IllegalStateException("No substitution model for " + this);
+        }
+    }
+}
@@ -1,17 +1,25 @@
 package io.github.falabdullateef;
 
-import java.io.BufferedReader;
-import java.io.FileReader;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
-import java.util.LinkedHashMap;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
-import java.util.Locale;
 import java.util.Map;
 
 final class FastaReader {
     private FastaReader() {}
 
+    /** Map at most this many bytes of the file at a time. */
+    private static final long SEGMENT_BYTES = 1L << 30;
+
     static class Entry {
         final String name;
         final String sequence;
@@ -21,66 +29,205 @@ final class FastaReader {
         }
     }
 
+    /**
+     * Receives records as they are scanned. Residues arrive one byte at a time, uppercased and with
+     * whitespace removed; records without residues are never reported.
+     */
+    interface RecordSink {
+        void begin(String name);
+        void put(byte residue);
+        void end();
+    }
+
     /**
      * Parse a FASTA file into a list of entries preserving order. Sequences are uppercased and whitespace removed.
      * Header line expected to start with '>' followed by the sequence name (first token until whitespace).
      */
     static List<Entry> parse(String path) throws IOException {
         List<Entry> result = new ArrayList<>();
-        try (BufferedReader br = new BufferedReader(new FileReader(path))) {
-            String line;
-            String currentName = null;
-            StringBuilder sb = new StringBuilder();
-            while ((line = br.readLine()) != null) {
-                if (line.startsWith(">")) {
-                    // flush previous
-                    if (currentName != null) {
-                        String seq = sb.toString().replaceAll("\\s+", "").toUpperCase(Locale.ROOT);
-                        if (!seq.isEmpty()) result.add(new Entry(currentName, seq));
-                        sb.setLength(0);
-                    }
-                    // get name = first token after '>'
-                    String header = line.substring(1).trim();
-                    String name = header.isEmpty() ? ("unnamed_" + (result.size()+1)) : header.split("\\s+")[0];
-                    currentName = name;
-                } else {
-                    sb.append(line.trim());
+        try (BuildStats.Timer timer = BuildStats.time(null, BuildStats.Phase.PARSE)) {
+            scan(Paths.get(path), new RecordSink() {
+                private String name;
+                private final StringBuilder sb = new StringBuilder();
+                @Override public void begin(String n) { name = n; sb.setLength(0); }
+                @Override public void put(byte residue) { sb.append((char) (residue & 0xFF)); }
+                @Override public void end() { result.add(new Entry(name, sb.toString())); }
+            });
+            timer.items(result.size());
+        }
+        return result;
+    }
+
+    /**
+     * Stream an aligned FASTA file straight into its packed encoding. Lengths are checked as each
+     * record is read, and duplicate names are disambiguated ({@code name_2}, {@code name_3}, ...).
+     */
+    static Alignment readPacked(Path path, boolean binary) throws IOException {
+        return readPacked(path, binary, null, GzipInput.DEFAULT_THREADS);
+    }
+
+    /**
+     * As {@link #readPacked(Path, boolean)}, timing the parse phase into {@code stats} (may be null)
+     * and inflating BGZF input on up to {@code threads} threads.
+     */
+    static Alignment readPacked(Path path, boolean binary, BuildStats stats, int threads) throws IOException {
+        return readPacked(List.of(path), binary, stats, threads);
+    }
+
+    /** Reads several FASTA files, in order, into one alignment (names are deduplicated across files). */
+    static Alignment readPacked(List<Path> paths, boolean binary, BuildStats stats, int threads) throws IOException {
+        try (BuildStats.Timer timer = BuildStats.time(stats, BuildStats.Phase.PARSE)) {
+            Alignment alignment = scanPacked(paths, binary, threads);
+            timer.items(alignment.size());
+            if (stats != null) {
+                stats.taxa = alignment.size();
+                stats.sites = alignment.sequences.length;
+            }
+            return alignment;
+        }
+    }
+
+    private static Alignment scanPacked(List<Path> paths, boolean binary, int threads) throws IOException {
+        PackedSequences.Builder builder = new PackedSequences.Builder(binary);
+        List<String> names = new ArrayList<>();
+        RecordSink sink = new RecordSink() {
+            private String name;
+            @Override public void begin(String n) { name = n; names.add(n); builder.begin(); }
+            @Override public void put(byte residue) {
+                try {
+                    builder.put((char) (residue & 0xFF));
+                } catch (IllegalArgumentException e) {
+                    throw new IllegalArgumentException("FASTA record " + name + ": " + e.getMessage(), e);
                 }
             }
-            if (currentName != null) {
-                String seq = sb.toString().replaceAll("\\s+", "").toUpperCase(Locale.ROOT);
-                if (!seq.isEmpty()) result.add(new Entry(currentName, seq));
+            @Override public void end() {
+                try {
+                    builder.end();
+                } catch (IllegalArgumentException e) {
+                    throw new IllegalArgumentException("FASTA sequences must be equal length; record " + name + ": " + e.getMessage(), e);
+                }
             }
-        }
-        return result;
+        };
+        for (Path path : paths) scan(path, sink, threads);
+        return new Alignment(uniqueNames(names), builder.build());
+    }
+
+    /**
+     * Scan a FASTA file through read-only memory-mapped segments. gzip and BGZF files are detected
+     * by their magic bytes and inflated on the fly (BGZF blocks in parallel); see {@link GzipInput}.
+     */
+    static void scan(Path path, RecordSink sink) throws IOException {
+        scan(path, sink, GzipInput.DEFAULT_THREADS);
     }
 
-    /** Ensure all sequences equal length; throw if not. */
-    static void assertEqualLengths(List<Entry> entries) {
-        if (entries.isEmpty()) return;
-        int L = entries.get(0).sequence.length();
-        for (Entry e : entries) {
-            if (e.sequence.length() != L) {
-                throw new IllegalArgumentException("FASTA sequences must be equal length; got " + e.name + " with L=" + e.sequence.length() + " vs first L=" + L);
+    /** As {@link #scan(Path, RecordSink)}, inflating BGZF blocks on up to {@code threads} threads. */
+    static void scan(Path path, RecordSink sink, int threads) throws IOException {
+        RecordParser parser = new RecordParser(sink);
+        try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (GzipInput.isGzip(ch)) {
+                GzipInput.feed(ch, parser, threads);
+                parser.finish();
+                return;
+            }
+            long size = ch.size();
+            for (long pos = 0; pos < size; pos += SEGMENT_BYTES) {
+                MappedByteBuffer segment = ch.map(FileChannel.MapMode.READ_ONLY, pos, Math.min(SEGMENT_BYTES, size - pos));
+                parser.feed(segment);
             }
         }
+        parser.finish();
+    }
+
+    /** Dedupe names preserving order. */
+    static String[] uniqueNames(List<String> raw) {
+        Map<String, Integer> seen = new HashMap<>();
+        String[] names = new String[raw.size()];
+        for (int i = 0; i < raw.size(); i++) {
+            String name = raw.get(i);
+            int count = seen.merge(name, 1, Integer::sum);
+            names[i] = count > 1 ? name + "_" + count : name; // disambiguate duplicates
+        }
+        return names;
     }
 
-    /** Return a species array and sequences list from FASTA entries, deduping names if necessary. */
-    static Object[] toArrays(List<Entry> entries) {
-        // dedupe names preserving order
-        Map<String, Integer> seen = new LinkedHashMap<>();
-        String[] names = new String[entries.size()];
-        List<String> seqs = new ArrayList<>(entries.size());
-        for (int i = 0; i < entries.size(); i++) {
-            Entry e = entries.get(i);
-            int count = seen.getOrDefault(e.name, 0) + 1;
-            seen.put(e.name, count);
-            String name = e.name;
-            if (count > 1) name = e.name + "_" + count; // disambiguate duplicates
-            names[i] = name;
-            seqs.add(e.sequence);
+    /**
+     * Byte-level FASTA state machine. Input can arrive in arbitrary chunks; headers and records may
+     * span chunk boundaries. Text before the first header is ignored.
+     */
+    static final class RecordParser {
+        private final RecordSink sink;
+        private final byte[] buf = new byte[64 * 1024];
+        private boolean inHeader;
+        private boolean atLineStart = true;
+        private byte[] header = new byte[64];
+        private int headerLen;
+        private String pendingName; // set after a header until the record's first residue
+        private boolean inRecord;
+        private int records;
+
+        RecordParser(RecordSink sink) {
+            this.sink = sink;
+        }
+
+        void feed(ByteBuffer chunk) {
+            ByteBuffer in = chunk.duplicate();
+            while (in.hasRemaining()) {
+                int n = Math.min(buf.length, in.remaining());
+                in.get(buf, 0, n);
+                feed(buf, 0, n);
+            }
+        }
+
+        void feed(byte[] bytes, int from, int to) {
+            for (int p = from; p < to; p++) {
+                byte b = bytes[p];
+                if (inHeader) {
+                    if (b == '\n' || b == '\r') {
+                        inHeader = false;
+                        atLineStart = true;
+                        pendingName = headerName();
+                    } else {
+                        if (headerLen == header.length) header = Arrays.copyOf(header, headerLen * 2);
+                        header[headerLen++] = b;
+                    }
+                } else if (b == '>' && atLineStart) {
+                    closeRecord();
+                    inHeader = true;
+                    headerLen = 0;
+                } else if (b == '\n' || b == '\r') {
+                    atLineStart = true;
+                } else {
+                    atLineStart = false;
+                    if ((b & 0xFF) <= ' ' || (pendingName == null && !inRecord)) continue;
+                    if (pendingName != null) {
+                        sink.begin(pendingName);
+                        pendingName = null;
+                        inRecord = true;
+                    }
+                    sink.put(b >= 'a' && b <= 'z' ? (byte) (b - 32) : b);
+                }
+            }
+        }
+
+        void finish() {
+            if (inHeader) pendingName = headerName();
+            inHeader = false;
+            closeRecord();
+        }
+
+        private void closeRecord() {
+            if (inRecord) {
+                sink.end();
+                records++;
+                inRecord = false;
+            }
+            pendingName = null;
+        }
+
+        // name = first token after '>'
+        private String headerName() {
+            String h = new String(header, 0, headerLen, StandardCharsets.UTF_8).trim();
+            return h.isEmpty() ? ("unnamed_" + (records + 1)) : h.split("\\s+")[0];
         }
-        return new Object[] { names, seqs };
     }
 }
@@ -0,0 +1,180 @@
+package io.github.falabdullateef;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+
+/**
+ * Decompresses gzip input for {@link FastaReader}, detected from the magic bytes rather than the
+ * file name. Plain gzip is one deflate stream and is inflated on the calling thread. BGZF (bgzip,
+ * samtools) is a series of independent gzip members of at most 64 KB, each recording its own
+ * size, so block boundaries are found from the headers alone: the file is memory-mapped, blocks are
+ * inflated on a pool, and the caller feeds them to the parser in order while later ones inflate.
+ */
+final class GzipInput {
+    private GzipInput() {}
+
+    static final int DEFAULT_THREADS = Integer.getInteger("phylo.threads", Runtime.getRuntime().availableProcessors());
+
+    private static final int HEADER_BYTES = 18; // fixed gzip header + XLEN + the BC subfield
+    private static final int FOOTER_BYTES = 8;  // CRC32 + ISIZE
+    private static final int MAX_BLOCK = 1 << 16;
+    private static final long SEGMENT_BYTES = 1L << 30;
+    /** Inflated blocks in flight per thread: enough to keep workers busy while the parser catches up. */
+    private static final int WINDOW_PER_THREAD = 4;
+
+    static boolean isGzip(FileChannel ch) throws IOException {
+        ByteBuffer magic = ByteBuffer.allocate(2);
+        if (ch.read(magic, 0) != 2) return false;
+        return (magic.get(0) & 0xFF) == 0x1F && (magic.get(1) & 0xFF) == 0x8B;
+    }
+
+    /** Inflates a gzip file into {@code parser}; BGZF files use up to {@code threads} threads. */
+    static void feed(FileChannel ch, FastaReader.RecordParser parser, int threads) throws IOException {
+        MappedByteBuffer segment = ch.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(SEGMENT_BYTES, ch.size()));
+        segment.order(ByteOrder.LITTLE_ENDIAN);
+        if (blockSize(segment, 0) > 0) {
+            feedBgzf(ch, segment, parser, threads);
+            return;
+        }
+        ch.position(0);
+        byte[] buf = new byte[MAX_BLOCK];
+        try {
+            // not closed: that would close the caller's channel
+            InputStream in = new GZIPInputStream(Channels.newInputStream(ch), MAX_BLOCK);
+            for (int n; (n = in.read(buf)) > 0; ) parser.feed(buf, 0, n);
+        } catch (EOFException e) {
+            throw new IOException("Truncated gzip input", e);
+        }
+    }
+
+    /**
+     * Total size of the BGZF block at {@code p}, or -1 when the header there is not a BGZF one
+     * (gzip with FEXTRA holding a {@code BC} subfield of length 2).
+     */
+    private static int blockSize(ByteBuffer buf, int p) {
+        if (buf.limit() - p < HEADER_BYTES) return -1;
+        if ((buf.get(p) & 0xFF) != 0x1F || (buf.get(p + 1) & 0xFF) != 0x8B || buf.get(p + 2) != 8 || (buf.get(p + 3) & 4) == 0) {
+            return -1;
+        }
+        int xlen = buf.getShort(p + 10) & 0xFFFF;
+        int end = p + 12 + xlen;
+        if (end > buf.limit()) return -1;
+        for (int q = p + 12; q + 4 <= end; ) {
+            int slen = buf.getShort(q + 2) & 0xFFFF;
+            if (buf.get(q) == 'B' && buf.get(q + 1) == 'C' && slen == 2 && q + 6 <= end) {
+                return (buf.getShort(q + 4) & 0xFFFF) + 1;
+            }
+            q += 4 + slen;
+        }
+        return -1;
+    }
+
+    private static void feedBgzf(FileChannel ch, MappedByteBuffer first, FastaReader.RecordParser parser, int threads)
+            throws IOException {
+        long size = ch.size();
+        ConcurrentLinkedQueue<Inflater> inflaters = new ConcurrentLinkedQueue<>();
+        ForkJoinPool pool = threads > 1 ? new ForkJoinPool(threads) : null;
+        ArrayDeque<Future<byte[]>> window = new ArrayDeque<>();
+        int maxWindow = Math.max(2, threads * WINDOW_PER_THREAD);
+        try {
+            ByteBuffer segment = first;
+            long segmentStart = 0;
+            long pos = 0;
+            while (pos < size) {
+                int p = (int) (pos - segmentStart);
+                if (p + MAX_BLOCK > segment.limit() && segmentStart + segment.limit() < size) {
+                    // the block, header and extra field included, may run past the mapped segment: remap starting at it
+                    segmentStart = pos;
+                    segment = ch.map(FileChannel.MapMode.READ_ONLY, pos, Math.min(SEGMENT_BYTES, size - pos))
+                            .order(ByteOrder.LITTLE_ENDIAN);
+                    p = 0;
+                }
+                int block = blockSize(segment, p);
+                if (block < HEADER_BYTES + FOOTER_BYTES || p + block > segment.limit()) {
+                    throw new IOException("Corrupt BGZF block at byte " + pos);
+                }
+                int xlen = segment.getShort(p + 10) & 0xFFFF;
+                ByteBuffer data = segment.slice(p + 12 + xlen, block - 12 - xlen - FOOTER_BYTES);
+                int crc = segment.getInt(p + block - FOOTER_BYTES);
+                int inflated = segment.getInt(p + block - 4);
+                if (inflated < 0 || inflated > MAX_BLOCK) throw new IOException("Corrupt BGZF block at byte " + pos);
+                long offset = pos;
+                if (pool == null) {
+                    byte[] out = inflate(data, inflated, crc, offset, inflaters);
+                    parser.feed(out, 0, out.length);
+                } else {
+                    window.add(pool.submit(() -> inflate(data, inflated, crc, offset, inflaters)));
+                    if (window.size() >= maxWindow) feedNext(window, parser);
+                }
+                pos += block;
+            }
+            while (!window.isEmpty()) feedNext(window, parser);
+        } finally {
+            if (pool != null) pool.shutdownNow();
+            for (Inflater inflater : inflaters) inflater.end();
+        }
+    }
+
+    private static void feedNext(ArrayDeque<Future<byte[]>> window, FastaReader.RecordParser parser) throws IOException {
+        byte[] out;
+        try {
+            out = window.poll().get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("BGZF decompression interrupted", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw new IllegalStateException(cause);
+        }
+        parser.feed(out, 0, out.length);
+    }
+
+    /** Inflates one block's raw deflate data and checks its length and CRC32. */
+    private static byte[] inflate(ByteBuffer data, int inflated, int crc, long offset, ConcurrentLinkedQueue<Inflater> inflaters)
+            throws IOException {
+        Inflater inflater = inflaters.poll();
+        if (inflater == null) inflater = new Inflater(true);
+        byte[] out = new byte[inflated];
+        try {
+            inflater.setInput(data);
+            int n = 0;
+            while (n < inflated && !inflater.finished()) {
+                int k = inflater.inflate(out, n, inflated - n);
+                if (k == 0 && (inflater.needsInput() || inflater.needsDictionary())) break;
+                n += k;
+            }
+            // a full buffer can still leave the end-of-block code unread; the stream must end exactly at ISIZE
+            if (n == inflated && !inflater.finished()) n += inflater.inflate(new byte[1]);
+            if (n != inflated || !inflater.finished()) {
+                throw new IOException("Corrupt BGZF block at byte " + offset + ": size mismatch");
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt BGZF block at byte " + offset + ": " + e.getMessage(), e);
+        } finally {
+            inflater.reset();
+            inflaters.add(inflater);
+        }
+        CRC32 check = new CRC32();
+        check.update(out, 0, inflated);
+        if ((int) check.getValue() != crc) throw new IOException("Corrupt BGZF block at byte " + offset + ": CRC mismatch");
+        return out;
+    }
+}
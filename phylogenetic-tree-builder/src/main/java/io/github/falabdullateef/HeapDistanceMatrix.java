@@ -0,0 +1,21 @@
+package io.github.falabdullateef;
+
+/** In-heap {@link DistanceMatrix} backed by a single flat {@code double[]} triangle. */
+final class HeapDistanceMatrix extends DistanceMatrix {
+    private final double[] cells;
+
+    HeapDistanceMatrix(String[] labels) {
+        super(labels);
+        long cellCount = triangleSize(labels.length);
+        if (cellCount > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException("Too many taxa for an in-heap distance matrix: " + labels.length);
+        }
+        this.cells = new double[(int) cellCount];
+    }
+
+    @Override
+    double getPacked(long index) { return cells[(int) index]; }
+
+    @Override
+    void setPacked(long index, double d) { cells[(int) index] = d; }
+}
@@ -1,58 +1,119 @@
 package io.github.falabdullateef;
 
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.*;
 
 public class Main {
 
-    private static Scanner scanner = new Scanner(System.in);
-    private static Map<String, Map<String, Double>> distanceMatrix = new HashMap<>();
-    private static Map<String, TreeNode> treeNodes = new HashMap<>();
-    private static boolean showMatrices = false;
-    private static boolean useUPGMA = true; // if false, WPGMA
-    private static Map<String, Integer> clusterSizes = new HashMap<>();
+    private static final String USAGE = String.join("\n",
+            "Usage: phylogenetic-tree-builder [options] [--input] <file>...",
+            "Without arguments, runs the interactive prompt flow.",
+            "",
+            "  -i, --input <file>     input file (repeatable; bare arguments are inputs too)",
+            "  -f, --format <fmt>     fasta (DNA, default) | binary (FASTA-style 0/1 records) |",
+            "                         phylip | csv | bintri (distance matrices; see README)",
+            "  -m, --method <m>       upgma (default) | wpgma | nj (Neighbor-Joining)",
+            "  -d, --distance <d>     hamming (mismatch count, default) | p | jc69 | k2p (per-site DNA",
+            "                         distances, gaps and ambiguity codes deleted pairwise)",
+            "  -o, --output <path>    output file; a directory when there are several inputs",
+            "                         (one <input name>.tree / .nwk each). Default: stdout",
+            "      --output-format <f>  ascii (default) | newick. ASCII repeats each clade's full",
+            "                         name and indents every level, so a deep tree of n taxa takes",
+            "                         O(n^2) characters; use newick (linear) for large trees",
+            "  -t, --threads <n>      threads for BGZF input, the distance matrix and bootstrap",
+            "                         (default: all cores)",
+            "      --sketch           approximate Mash distances from MinHash sketches of unaligned",
+            "                         DNA (equal lengths not required)",
+            "      --kmer <k>         sketch k-mer length, 1..31 (default: 21)",
+            "      --sketch-size <s>  hashes kept per sequence (default: 1000)",
+            "      --dedup            cluster identical sequences once and re-attach the copies",
+            "                         as zero-length leaves",
+            "      --no-compress      compute distances on every column instead of distinct site patterns",
+            "  -b, --bootstrap <n>    annotate clades with support from n bootstrap replicates",
+            "      --seed <s>         bootstrap random seed (default: 1)",
+            "      --matrix-backend <b>  heap | mmap (memory-mapped temp file) | auto (default:",
+            "                         heap unless the matrix, plus NJ's row index, needs over",
+            "                         half the max heap; NJ keeps that index on the heap)",
+            "      --matrix-dir <dir> directory for memory-mapped matrices (default: java.io.tmpdir)",
+            "      --cache-dir <dir>  reuse distance matrices of previously seen inputs from <dir>",
+            "      --cache-max-bytes <n>  cache size bound, with optional K/M/G suffix (default: 4G)",
+            "      --place <tree>     add the taxa of all inputs missing from a Newick tree built",
+            "                         with the same --method, instead of rebuilding; one tree out",
+            "      --serve <port>     run as a local HTTP service instead (POST /build, GET /status;",
+            "                         see README); 0 picks a free port",
+            "      --serve-queue <n>  jobs admitted at once, waiting or running (default: 64)",
+            "      --serve-memory <n> heap budget shared by running jobs, with optional K/M/G",
+            "                         suffix (default: 3/4 of the max heap)",
+            "      --show-matrices    print the distance matrix after each merge",
+            "      --merge-log <file> stream every merge (pair, height, size) to a compact binary log",
+            "      --replay-log <file>  print the matrix after each merge of a logged run offline,",
+            "                         from the same input and options, instead of building",
+            "      --checkpoint <file>  periodically save the clustering state (needs --merge-log)",
+            "      --checkpoint-every <s>  seconds between checkpoints (default: 300)",
+            "      --resume           continue from the --checkpoint file if there is one",
+            "      --stats-json <path>  write per-input phase timings and counters as a JSON array",
+            "                         ('-' for stderr)",
+            "  -h, --help             show this help");
 
     public static void main(String[] args) {
+        if (args.length == 0) {
+            interactive(new Scanner(System.in));
+            return;
+        }
+        int status = batch(args);
+        if (status != 0) System.exit(status);
+    }
+
+    private static void interactive(Scanner scanner) {
         System.out.println("What do you have?");
         System.out.println("1. DNA sequence (manual)");
         System.out.println("2. Distance matrix");
         System.out.println("3. Binary presence/absence (0/1) characters");
         System.out.println("4. DNA FASTA file");
-        System.out.print("Enter your choice (1/2/3/4): ");
+        System.out.println("5. Distance matrix file (PHYLIP / CSV / binary triangle)");
+        System.out.print("Enter your choice (1/2/3/4/5): ");
         int choice = scanner.nextInt();
         scanner.nextLine();  // Consume newline left-over
 
-        System.out.print("Use UPGMA (size-weighted) or WPGMA (unweighted)? Enter 'u' or 'w': ");
+        System.out.print("Use UPGMA (size-weighted), WPGMA (unweighted) or Neighbor-Joining? Enter 'u', 'w' or 'n': ");
         String methodAns = scanner.nextLine().trim().toLowerCase();
-        useUPGMA = !methodAns.startsWith("w");
+        ClusterMethod method = methodAns.startsWith("w") ? ClusterMethod.WPGMA
+                : methodAns.startsWith("n") ? ClusterMethod.NJ : ClusterMethod.UPGMA;
 
         System.out.print("Show distance matrix after each clustering step? (y/n): ");
         String showAns = scanner.nextLine().trim().toLowerCase();
-        showMatrices = showAns.startsWith("y");
+        boolean showMatrices = showAns.startsWith("y");
+
+        TreeBuilder builder = new TreeBuilder().method(method).trace(showMatrices ? System.out : null);
+        try (DistanceMatrix distanceMatrix = readDistanceMatrix(scanner, choice, builder)) {
+            if (distanceMatrix == null) return;
+            Writer out = stdoutWriter();
+            TreePrinter.print(builder.cluster(distanceMatrix), out);
+            out.flush();
+        } catch (IOException io) {
+            System.err.println("Failed to build distance matrix: " + io.getMessage());
+        }
+    }
 
+    /** Prompt for the chosen kind of input and turn it into a distance matrix; null after reporting an error. */
+    private static DistanceMatrix readDistanceMatrix(Scanner scanner, int choice, TreeBuilder builder) throws IOException {
         if (choice == 1) { // DNA sequences entered manually
-            System.out.print("Enter the number of species: ");
-            int numOfSpecies = scanner.nextInt();
-            scanner.nextLine();
-
-            String[] speciesNames = new String[numOfSpecies];
-            System.out.print("Auto-generate species names (a,b,c,...) ? (y/n): ");
-            String autoAns = scanner.nextLine().trim().toLowerCase();
-            boolean autoNames = autoAns.startsWith("y");
-
-            if (autoNames) {
-                for (int i = 0; i < numOfSpecies; i++) speciesNames[i] = generateLabel(i);
-                System.out.println("Generated species labels: " + String.join(", ", speciesNames));
-            } else {
-                for (int i = 0; i < numOfSpecies; i++) {
-                    System.out.print("Enter name for species " + (i + 1) + ": ");
-                    speciesNames[i] = scanner.nextLine();
-                }
-            }
+            String[] speciesNames = readSpeciesNames(scanner);
 
             List<String> sequences = new ArrayList<>();
             Integer expectedLen = null;
-            for (int i = 0; i < numOfSpecies; i++) {
+            for (int i = 0; i < speciesNames.length; i++) {
                 while (true) {
                     System.out.print("Enter sequence for " + speciesNames[i] + ": ");
                     String seq = scanner.nextLine().trim();
@@ -68,86 +129,29 @@ public class Main {
                     }
                 }
             }
-            distanceMatrix.clear();
-            treeNodes.clear();
-            clusterSizes.clear();
-            populateDistanceMatrix(speciesNames, sequences);
-            if (showMatrices) {
-                System.out.println("Initial distance matrix:");
-                MatrixPrinter.printUpperTriangle(distanceMatrix, (a,b)-> MatrixOps.getDistance(distanceMatrix,a,b));
-                System.out.println("--------");
-            }
+            return builder.distances(new Alignment(speciesNames, PackedSequences.dna(sequences)));
         } else if (choice == 2) { // Distance matrix
-            System.out.print("Enter the number of species: ");
-            int numOfSpecies = scanner.nextInt();
-            scanner.nextLine();
-
-            String[] speciesNames = new String[numOfSpecies];
-            System.out.print("Auto-generate species names (a,b,c,...) ? (y/n): ");
-            String autoAns = scanner.nextLine().trim().toLowerCase();
-            boolean autoNames = autoAns.startsWith("y");
-            if (autoNames) {
-                for (int i = 0; i < numOfSpecies; i++) speciesNames[i] = generateLabel(i);
-                System.out.println("Generated species labels: " + String.join(", ", speciesNames));
-            } else {
-                for (int i = 0; i < numOfSpecies; i++) {
-                    System.out.print("Enter name for species " + (i + 1) + ": ");
-                    speciesNames[i] = scanner.nextLine();
-                }
-            }
-            // Initialize maps and tree nodes first
-            distanceMatrix.clear();
-            treeNodes.clear();
-            clusterSizes.clear();
+            String[] speciesNames = readSpeciesNames(scanner);
+            int numOfSpecies = speciesNames.length;
+            // Only ask for distances where j > i (upper triangle); the rest stays missing (NaN)
+            double[][] square = new double[numOfSpecies][numOfSpecies];
+            for (double[] row : square) Arrays.fill(row, Double.NaN);
             for (int i = 0; i < numOfSpecies; i++) {
-                distanceMatrix.put(speciesNames[i], new HashMap<>());
-                treeNodes.put(speciesNames[i], new TreeNode(speciesNames[i]));
-                clusterSizes.put(speciesNames[i], 1);
-            }
-
-            // Only ask for distances where j > i (upper triangle) and set diagonals to 0
-            for (int i = 0; i < numOfSpecies; i++) {
-                for (int j = i; j < numOfSpecies; j++) {
-                    if (i == j) {
-                        distanceMatrix.get(speciesNames[i]).put(speciesNames[j], 0.0); // self-distance
-                    } else {
-                        System.out.print("Enter distance between " + speciesNames[i] + " and " + speciesNames[j] + ": ");
-                        double distance = scanner.nextDouble();
-                        // Store symmetrically
-                        distanceMatrix.get(speciesNames[i]).put(speciesNames[j], distance);
-                        distanceMatrix.get(speciesNames[j]).put(speciesNames[i], distance);
-                    }
+                for (int j = i + 1; j < numOfSpecies; j++) {
+                    System.out.print("Enter distance between " + speciesNames[i] + " and " + speciesNames[j] + ": ");
+                    square[i][j] = scanner.nextDouble();
                 }
             }
             scanner.nextLine(); // consume leftover newline once after matrix input
-            if (showMatrices) {
-                System.out.println("Initial distance matrix:");
-                MatrixPrinter.printUpperTriangle(distanceMatrix, (a,b)-> MatrixOps.getDistance(distanceMatrix,a,b));
-                System.out.println("--------");
-            }
+            // Ensure symmetry before clustering (safety)
+            return MatrixOps.symmetrize(speciesNames, square);
         } else if (choice == 3) { // Binary presence/absence matrix
-            System.out.print("Enter the number of species: ");
-            int numOfSpecies = scanner.nextInt();
-            scanner.nextLine();
-
-            String[] speciesNames = new String[numOfSpecies];
-            System.out.print("Auto-generate species names (a,b,c,...) ? (y/n): ");
-            String autoAns = scanner.nextLine().trim().toLowerCase();
-            boolean autoNames = autoAns.startsWith("y");
-            if (autoNames) {
-                for (int i = 0; i < numOfSpecies; i++) speciesNames[i] = generateLabel(i);
-                System.out.println("Generated species labels: " + String.join(", ", speciesNames));
-            } else {
-                for (int i = 0; i < numOfSpecies; i++) {
-                    System.out.print("Enter name for species " + (i + 1) + ": ");
-                    speciesNames[i] = scanner.nextLine();
-                }
-            }
+            String[] speciesNames = readSpeciesNames(scanner);
             List<String> binaryVectors = new ArrayList<>();
             System.out.print("Enter number of characters (columns) in the binary matrix: ");
             int numChars = scanner.nextInt();
             scanner.nextLine();
-            for (int i = 0; i < numOfSpecies; i++) {
+            for (int i = 0; i < speciesNames.length; i++) {
                 while (true) {
                     System.out.print("Enter 0/1 pattern (length " + numChars + ") for " + speciesNames[i] + ": ");
                     String pattern = scanner.nextLine().trim();
@@ -159,172 +163,401 @@ public class Main {
                     }
                 }
             }
-            distanceMatrix.clear();
-            treeNodes.clear();
-            clusterSizes.clear();
-            populateDistanceMatrixBinary(speciesNames, binaryVectors);
-            if (showMatrices) {
-                System.out.println("Initial distance matrix:");
-                MatrixPrinter.printUpperTriangle(distanceMatrix, (a,b)-> MatrixOps.getDistance(distanceMatrix,a,b));
-                System.out.println("--------");
-            }
+            return builder.distances(new Alignment(speciesNames, PackedSequences.binary(binaryVectors)));
         } else if (choice == 4) { // FASTA input
             System.out.print("Enter path to FASTA file: ");
             String path = scanner.nextLine().trim();
-            List<FastaReader.Entry> entries;
+            Alignment alignment;
             try {
-                entries = FastaReader.parse(path);
+                alignment = FastaReader.readPacked(Paths.get(path), false);
             } catch (IOException io) {
                 System.err.println("Failed to read FASTA: " + io.getMessage());
-                return;
+                return null;
+            } catch (IllegalArgumentException iae) {
+                System.err.println(iae.getMessage());
+                return null;
             }
-            if (entries.isEmpty()) {
+            if (alignment.size() == 0) {
                 System.err.println("No sequences found in FASTA file.");
-                return;
+                return null;
             }
+            return builder.distances(alignment);
+        } else if (choice == 5) { // distance matrix file, format from the extension
+            System.out.print("Enter path to matrix file (.phy, .csv or .bin): ");
+            Path path = Paths.get(scanner.nextLine().trim());
             try {
-                FastaReader.assertEqualLengths(entries);
+                return MatrixReader.read(path, MatrixReader.Format.detect(path), builder, null);
             } catch (IllegalArgumentException iae) {
                 System.err.println(iae.getMessage());
-                return;
-            }
-            Object[] arrays = FastaReader.toArrays(entries);
-            String[] speciesNames = (String[]) arrays[0];
-            @SuppressWarnings("unchecked")
-            List<String> sequences = (List<String>) arrays[1];
-
-            distanceMatrix.clear();
-            treeNodes.clear();
-            clusterSizes.clear();
-            populateDistanceMatrix(speciesNames, sequences);
-            if (showMatrices) {
-                System.out.println("Initial distance matrix:");
-                MatrixPrinter.printUpperTriangle(distanceMatrix, (a,b)-> MatrixOps.getDistance(distanceMatrix,a,b));
-                System.out.println("--------");
+                return null;
             }
+        } else {
+            System.err.println("Unknown choice: " + choice);
+            return null;
         }
+    }
 
-    // Ensure symmetry before clustering (safety)
-    MatrixOps.symmetrize(distanceMatrix);
-
-    while (distanceMatrix.size() > 1) {
-            String[] minPair = findMinPair();
-            updateDistanceMatrix(minPair[0], minPair[1]);
+    /**
+     * Non-interactive mode: build one tree per input file with a single shared {@link TreeBuilder}.
+     * Returns the process exit status (0 ok, 1 some input failed, 2 bad usage).
+     */
+    static int batch(String[] args) {
+        List<Path> inputs = new ArrayList<>();
+        boolean binary = false;
+        MatrixReader.Format matrixFormat = null; // set when the inputs are distance matrices
+        Path output = null;
+        TreeBuilder builder = new TreeBuilder();
+        MatrixBackend backend = MatrixBackend.AUTO;
+        Path matrixDir = null;
+        boolean newick = false;
+        String statsJson = null;
+        int replicates = 0;
+        long seed = 1;
+        Path placeInto = null;
+        boolean sketch = false;
+        int kmer = MinHashSketches.DEFAULT_K;
+        int sketchSize = MinHashSketches.DEFAULT_SIZE;
+        Path cacheDir = null;
+        long cacheMaxBytes = 4L << 30;
+        int servePort = -1; // -1 = batch mode
+        int serveQueue = 64;
+        long serveMemory = Runtime.getRuntime().maxMemory() / 4 * 3;
+        Path mergeLog = null;
+        Path replayLog = null;
+        Path checkpoint = null;
+        long checkpointSeconds = 300;
+        boolean resume = false;
+        PrintStream trace = null;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                String arg = args[i];
+                switch (arg) {
+                    case "-i": case "--input":
+                        inputs.add(Paths.get(optionValue(args, ++i, arg)));
+                        break;
+                    case "-f": case "--format": {
+                        String format = optionValue(args, ++i, arg).toLowerCase(Locale.ROOT);
+                        binary = format.equals("binary");
+                        matrixFormat = null;
+                        if (!format.equals("fasta") && !binary) matrixFormat = MatrixReader.Format.parse(format);
+                        break;
+                    }
+                    case "-m": case "--method":
+                        builder.method(ClusterMethod.parse(optionValue(args, ++i, arg)));
+                        break;
+                    case "-d": case "--distance":
+                        builder.metric(DistanceMetric.parse(optionValue(args, ++i, arg)));
+                        break;
+                    case "-o": case "--output":
+                        output = Paths.get(optionValue(args, ++i, arg));
+                        break;
+                    case "--output-format": {
+                        String format = optionValue(args, ++i, arg).toLowerCase(Locale.ROOT);
+                        if (!format.equals("ascii") && !format.equals("newick")) {
+                            throw new IllegalArgumentException("Unknown output format: " + format);
+                        }
+                        newick = format.equals("newick");
+                        break;
+                    }
+                    case "-t": case "--threads":
+                        builder.threads(Integer.parseInt(optionValue(args, ++i, arg)));
+                        break;
+                    case "--dedup":
+                        builder.dedup(true);
+                        break;
+                    case "--no-compress":
+                        builder.compressPatterns(false);
+                        break;
+                    case "-b": case "--bootstrap":
+                        replicates = Integer.parseInt(optionValue(args, ++i, arg));
+                        break;
+                    case "--seed":
+                        seed = Long.parseLong(optionValue(args, ++i, arg));
+                        break;
+                    case "--matrix-backend":
+                        backend = MatrixBackend.parse(optionValue(args, ++i, arg));
+                        break;
+                    case "--matrix-dir":
+                        matrixDir = Paths.get(optionValue(args, ++i, arg));
+                        break;
+                    case "--sketch":
+                        sketch = true;
+                        break;
+                    case "--kmer":
+                        kmer = Integer.parseInt(optionValue(args, ++i, arg));
+                        break;
+                    case "--sketch-size":
+                        sketchSize = Integer.parseInt(optionValue(args, ++i, arg));
+                        break;
+                    case "--place":
+                        placeInto = Paths.get(optionValue(args, ++i, arg));
+                        break;
+                    case "--cache-dir":
+                        cacheDir = Paths.get(optionValue(args, ++i, arg));
+                        break;
+                    case "--cache-max-bytes":
+                        cacheMaxBytes = parseSize(optionValue(args, ++i, arg));
+                        break;
+                    case "--serve":
+                        servePort = Integer.parseInt(optionValue(args, ++i, arg));
+                        break;
+                    case "--serve-queue":
+                        serveQueue = Integer.parseInt(optionValue(args, ++i, arg));
+                        break;
+                    case "--serve-memory":
+                        serveMemory = parseSize(optionValue(args, ++i, arg));
+                        break;
+                    case "--stats-json":
+                        statsJson = optionValue(args, ++i, arg);
+                        break;
+                    case "--show-matrices":
+                        trace = traceStream();
+                        builder.trace(trace);
+                        break;
+                    case "--merge-log":
+                        mergeLog = Paths.get(optionValue(args, ++i, arg));
+                        break;
+                    case "--replay-log":
+                        replayLog = Paths.get(optionValue(args, ++i, arg));
+                        break;
+                    case "--checkpoint":
+                        checkpoint = Paths.get(optionValue(args, ++i, arg));
+                        break;
+                    case "--checkpoint-every":
+                        checkpointSeconds = Long.parseLong(optionValue(args, ++i, arg));
+                        break;
+                    case "--resume":
+                        resume = true;
+                        break;
+                    case "-h": case "--help":
+                        System.out.println(USAGE);
+                        return 0;
+                    default:
+                        if (arg.startsWith("-")) throw new IllegalArgumentException("Unknown option: " + arg);
+                        inputs.add(Paths.get(arg));
+                }
+            }
+            if (inputs.isEmpty() && servePort < 0) throw new IllegalArgumentException("No input files given");
+            if (matrixFormat != null && (replicates > 0 || placeInto != null || sketch)) {
+                throw new IllegalArgumentException("--bootstrap, --place and --sketch need sequences, not a distance matrix");
+            }
+            if (sketch && (binary || replicates > 0 || placeInto != null)) {
+                throw new IllegalArgumentException("--sketch works on DNA FASTA and cannot be combined with --bootstrap or --place");
+            }
+            if ((mergeLog != null || checkpoint != null || replayLog != null) && (inputs.size() > 1 || placeInto != null)) {
+                throw new IllegalArgumentException("--merge-log, --checkpoint and --replay-log take a single input");
+            }
+            if (checkpoint != null && mergeLog == null) throw new IllegalArgumentException("--checkpoint needs --merge-log");
+            if (resume && checkpoint == null) throw new IllegalArgumentException("--resume needs --checkpoint");
+            if (checkpointSeconds < 0) throw new IllegalArgumentException("--checkpoint-every must be >= 0");
+            builder.matrixBackend(backend, matrixDir).bootstrap(replicates, seed).cache(cacheDir, cacheMaxBytes)
+                    .mergeLog(mergeLog).checkpoints(checkpoint, checkpointSeconds * 1000, resume);
+            if (servePort >= 0) {
+                if (!inputs.isEmpty()) throw new IllegalArgumentException("--serve takes its inputs from requests");
+                return serve(servePort, builder, serveQueue, serveMemory);
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            return 2;
         }
 
-    TreePrinter.print(treeNodes.values().iterator().next(), "", true);
-    // /todo: Re-audit UPGMA clustering logic (average distance calc, tie handling)
-    }
-
+        if (replayLog != null) return replay(inputs.get(0), replayLog, builder, matrixFormat, binary, sketch, kmer, sketchSize);
 
-    private static String[] findMinPair() {
-        String[] pair = new String[2];
-        double minDistance = Double.MAX_VALUE;
-        List<String> labels = new ArrayList<>(distanceMatrix.keySet());
-        Collections.sort(labels);
-        for (int i = 0; i < labels.size(); i++) {
-            for (int j = i + 1; j < labels.size(); j++) {
-                String a = labels.get(i);
-                String b = labels.get(j);
-                double d = getDistance(a, b);
-                if (d < minDistance) {
-                    minDistance = d;
-                    pair[0] = a;
-                    pair[1] = b;
+        int status = 0;
+        List<String> statsObjects = new ArrayList<>();
+        if (placeInto != null) {
+            // one alignment over all inputs, placed into the one tree
+            try {
+                BuildStats stats = statsJson == null ? null : new BuildStats();
+                if (stats != null) stats.source = placeInto.toString();
+                TreeNode tree = NewickReader.read(placeInto);
+                Alignment alignment = FastaReader.readPacked(inputs, binary, stats, builder.threads());
+                writeTree(builder.place(tree, alignment, stats), output, newick);
+                if (stats != null) statsObjects.add(stats.toJson());
+            } catch (IOException | IllegalArgumentException e) {
+                System.err.println(placeInto + ": " + e.getMessage());
+                status = 1;
+            }
+            inputs.clear();
+        }
+        List<Path> targets = output != null && inputs.size() > 1 ? treeFiles(output, inputs, newick ? ".nwk" : ".tree") : null;
+        for (int k = 0; k < inputs.size(); k++) {
+            Path input = inputs.get(k);
+            try {
+                BuildStats stats = statsJson == null ? null : new BuildStats();
+                if (stats != null) stats.source = input.toString();
+                TreeNode root;
+                if (matrixFormat != null) {
+                    try (DistanceMatrix matrix = MatrixReader.read(input, matrixFormat, builder, stats)) {
+                        root = builder.cluster(matrix, stats);
+                    }
+                } else if (sketch) {
+                    MinHashSketches sketches = MinHashSketches.read(input, kmer, sketchSize, stats, builder.threads());
+                    if (sketches.count() == 0) throw new IllegalArgumentException("No sequences found");
+                    root = builder.build(sketches, stats);
+                } else {
+                    Alignment alignment = FastaReader.readPacked(input, binary, stats, builder.threads());
+                    if (alignment.size() == 0) throw new IllegalArgumentException("No sequences found");
+                    root = builder.build(alignment, stats);
                 }
+                if (trace != null) trace.flush();
+                writeTree(root, targets != null ? targets.get(k) : output, newick);
+                if (stats != null) statsObjects.add(stats.toJson());
+            } catch (IOException | IllegalArgumentException e) {
+                System.err.println(input + ": " + e.getMessage());
+                status = 1;
+            }
+        }
+        if (statsJson != null) {
+            String json = "[" + String.join(",\n", statsObjects) + "]\n";
+            try {
+                if (statsJson.equals("-")) System.err.print(json);
+                else Files.writeString(Paths.get(statsJson), json);
+            } catch (IOException e) {
+                System.err.println(statsJson + ": " + e.getMessage());
+                status = 1;
             }
         }
-        return pair;
+        return status;
     }
 
-    private static void updateDistanceMatrix(String species1, String species2) {
-        String newCluster = "(" + species1 + "," + species2 + ")";
-    Map<String, Double> newDistances = new HashMap<>();
-    int size1 = clusterSizes.getOrDefault(species1, 1);
-    int size2 = clusterSizes.getOrDefault(species2, 1);
-
-        TreeNode newNode = new TreeNode(newCluster);
-        newNode.left = treeNodes.get(species1);
-        newNode.right = treeNodes.get(species2);
-        // Height (UPGMA style): half the distance between children. For WPGMA we still show same convention.
-        double dAB = getDistance(species1, species2);
-        newNode.height = dAB / 2.0;
-
-        treeNodes.put(newCluster, newNode);
-        treeNodes.remove(species1);
-        treeNodes.remove(species2);
-
-        for (String otherSpecies : distanceMatrix.keySet()) {
-            if (!otherSpecies.equals(species1) && !otherSpecies.equals(species2)) {
-                double d1 = getDistance(species1, otherSpecies);
-                double d2 = getDistance(species2, otherSpecies);
-                double newDistance;
-                if (useUPGMA) {
-                    newDistance = ((size1 * d1) + (size2 * d2)) / (size1 + size2);
-                } else {
-                    newDistance = (d1 + d2) / 2.0; // WPGMA
+    /** Prints the per-merge matrices of a logged run of {@code input}; returns the exit status. */
+    private static int replay(Path input, Path log, TreeBuilder builder, MatrixReader.Format matrixFormat, boolean binary,
+                              boolean sketch, int kmer, int sketchSize) {
+        PrintStream out = traceStream();
+        try {
+            if (matrixFormat != null) {
+                try (DistanceMatrix matrix = MatrixReader.read(input, matrixFormat, builder, null)) {
+                    builder.replay(matrix, log, out);
+                }
+            } else if (sketch) {
+                MinHashSketches sketches = MinHashSketches.read(input, kmer, sketchSize, null, builder.threads());
+                try (DistanceMatrix matrix = builder.distances(sketches, null)) {
+                    builder.replay(matrix, log, out);
                 }
-                newDistances.put(otherSpecies, newDistance);
+            } else {
+                builder.replay(FastaReader.readPacked(input, binary, null, builder.threads()), log, out);
             }
+            return 0;
+        } catch (IOException | IllegalArgumentException e) {
+            out.flush();
+            System.err.println(input + ": " + e.getMessage());
+            return 1;
+        } finally {
+            out.flush();
         }
+    }
 
-        distanceMatrix.remove(species1);
-        distanceMatrix.remove(species2);
+    /** Stdout for the matrix trace, buffered: System.out flushes on every line, which dominates large traces. */
+    private static PrintStream traceStream() {
+        return new PrintStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 1 << 16), false);
+    }
 
-    for (String otherSpecies : distanceMatrix.keySet()) {
-            distanceMatrix.get(otherSpecies).remove(species1);
-            distanceMatrix.get(otherSpecies).remove(species2);
-            distanceMatrix.get(otherSpecies).put(newCluster, newDistances.get(otherSpecies));
+    /** Starts the HTTP service; it keeps the JVM running until the process is stopped. */
+    private static int serve(int port, TreeBuilder builder, int queue, long memory) {
+        TreeServer server;
+        try {
+            server = TreeServer.start(port, builder, queue, memory);
+        } catch (IOException e) {
+            System.err.println("--serve " + port + ": " + e.getMessage());
+            return 1;
         }
+        Runtime.getRuntime().addShutdownHook(new Thread(server::stop));
+        System.err.println("Serving on http://" + server.address().getHostString() + ":" + server.address().getPort()
+                + "/ (" + (server.virtualThreads() ? "virtual" : "platform") + " threads)");
+        return 0;
+    }
 
-    distanceMatrix.put(newCluster, newDistances);
-    // ensure diagonal defined
-    distanceMatrix.get(newCluster).put(newCluster, 0.0);
-
-    // update cluster sizes
-    clusterSizes.put(newCluster, size1 + size2);
-    clusterSizes.remove(species1);
-    clusterSizes.remove(species2);
+    /**
+     * One tree file per input in {@code dir}, named after the input. Inputs with the same file name
+     * (from different directories) get {@code _2}, {@code _3}, ... as duplicate FASTA names do, so
+     * none overwrites another's tree.
+     */
+    private static List<Path> treeFiles(Path dir, List<Path> inputs, String extension) {
+        Set<String> used = new HashSet<>();
+        List<Path> files = new ArrayList<>(inputs.size());
+        for (Path input : inputs) {
+            String name = String.valueOf(input.getFileName());
+            String file = name + extension;
+            for (int n = 2; !used.add(file); n++) file = name + "_" + n + extension;
+            if (!file.equals(name + extension)) System.err.println(input + ": another input has the same name, writing " + file);
+            files.add(dir.resolve(file));
+        }
+        return files;
+    }
 
-        if (showMatrices) {
-            System.out.println("\nMerged: " + species1 + " + " + species2 + " -> " + newCluster);
-            MatrixPrinter.printUpperTriangle(distanceMatrix, (a,b)-> MatrixOps.getDistance(distanceMatrix,a,b));
-            System.out.println("--------");
+    /** Writes the tree to {@code target}, or to stdout when it is null. */
+    private static void writeTree(TreeNode root, Path target, boolean newick) throws IOException {
+        if (target == null) {
+            Writer out = stdoutWriter();
+            writeTree(root, newick, out);
+            out.flush();
+            return;
         }
+        if (target.getParent() != null) Files.createDirectories(target.getParent());
+        try (Writer out = new BufferedWriter(
+                new OutputStreamWriter(Files.newOutputStream(target), StandardCharsets.UTF_8), 1 << 16)) {
+            writeTree(root, newick, out);
+        }
+    }
+
+    private static void writeTree(TreeNode root, boolean newick, Writer out) throws IOException {
+        if (newick) NewickWriter.write(root, out);
+        else TreePrinter.print(root, out);
     }
 
-    // Tree printing moved to TreePrinter
-    private static void populateDistanceMatrix(String[] species, List<String> sequences) {
-        for (int i = 0; i < species.length; i++) {
-            distanceMatrix.put(species[i], new HashMap<>());
-            treeNodes.put(species[i], new TreeNode(species[i]));
-            clusterSizes.put(species[i], 1);
-            for (int j = 0; j < species.length; j++) {
-                double distance = DistanceCalculators.hammingDNA(sequences.get(i), sequences.get(j));
-                distanceMatrix.get(species[i]).put(species[j], distance);
+    /** Large buffered writer over stdout; flushed, never closed, by the caller. */
+    private static Writer stdoutWriter() {
+        return new BufferedWriter(new OutputStreamWriter(System.out), 1 << 16);
+    }
+
+    private static String optionValue(String[] args, int i, String option) {
+        if (i >= args.length) throw new IllegalArgumentException("Missing value for " + option);
+        return args[i];
+    }
+
+    /** A byte count such as {@code 512M}: digits with an optional K, M or G (binary) suffix. */
+    private static long parseSize(String value) {
+        String digits = value;
+        int shift = 0;
+        if (!value.isEmpty()) {
+            int unit = "KMG".indexOf(Character.toUpperCase(value.charAt(value.length() - 1)));
+            if (unit >= 0) {
+                digits = value.substring(0, value.length() - 1);
+                shift = 10 * (unit + 1);
             }
-            distanceMatrix.get(species[i]).put(species[i], 0.0);
         }
+        long size = Long.parseLong(digits);
+        if (size < 0 || size > Long.MAX_VALUE >> shift) throw new IllegalArgumentException("Bad size: " + value);
+        return size << shift;
     }
 
-    private static void populateDistanceMatrixBinary(String[] species, List<String> binaryVectors) {
-        for (int i = 0; i < species.length; i++) {
-            distanceMatrix.put(species[i], new HashMap<>());
-            treeNodes.put(species[i], new TreeNode(species[i]));
-            clusterSizes.put(species[i], 1);
-            for (int j = 0; j < species.length; j++) {
-                double distance = DistanceCalculators.hammingBinary(binaryVectors.get(i), binaryVectors.get(j));
-                distanceMatrix.get(species[i]).put(species[j], distance);
+    private static String[] readSpeciesNames(Scanner scanner) {
+        System.out.print("Enter the number of species: ");
+        int numOfSpecies = scanner.nextInt();
+        scanner.nextLine();
+
+        String[] speciesNames = new String[numOfSpecies];
+        System.out.print("Auto-generate species names (a,b,c,...) ? (y/n): ");
+        String autoAns = scanner.nextLine().trim().toLowerCase();
+        boolean autoNames = autoAns.startsWith("y");
+        if (autoNames) {
+            for (int i = 0; i < numOfSpecies; i++) speciesNames[i] = generateLabel(i);
+            System.out.println("Generated species labels: " + String.join(", ", speciesNames));
+        } else {
+            for (int i = 0; i < numOfSpecies; i++) {
+                System.out.print("Enter name for species " + (i + 1) + ": ");
+                speciesNames[i] = scanner.nextLine();
             }
-            distanceMatrix.get(species[i]).put(species[i], 0.0);
         }
+        return speciesNames;
     }
 
+    // Clustering loop moved to ClusteringEngine; pipeline state lives in TreeBuilder
 
     // Distance calculations moved to DistanceCalculators
 
-    private static double getDistance(String a, String b) { return MatrixOps.getDistance(distanceMatrix, a, b); }
-
     // Generate labels: a,b,...,z, aa, ab, ... (base-26 lowercase)
     private static String generateLabel(int index) {
         StringBuilder sb = new StringBuilder();
@@ -343,4 +576,4 @@ public class Main {
 
 
     // TreeNode moved to its own file
-}
\ No newline at end of file
+}
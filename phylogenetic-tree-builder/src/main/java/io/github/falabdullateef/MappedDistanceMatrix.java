@@ -0,0 +1,100 @@
+package io.github.falabdullateef;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Out-of-core {@link DistanceMatrix}: the packed triangle lives in a file mapped read-write in
+ * 1 GB segments, so it can be far larger than both the heap and a single 2 GB mapping. Cells are
+ * little-endian doubles in the same order as the in-heap backend. The OS pages cells in and out;
+ * updates during clustering go straight to the mapping.
+ */
+final class MappedDistanceMatrix extends DistanceMatrix {
+    private static final int SEGMENT_SHIFT = 27; // 2^27 doubles = 1 GB per mapping
+    private static final long SEGMENT_MASK = (1L << SEGMENT_SHIFT) - 1;
+
+    private final Path file;
+    private final boolean deleteOnClose;
+    private final DoubleBuffer[] segments;
+
+    MappedDistanceMatrix(String[] labels, Path file, boolean deleteOnClose) throws IOException {
+        this(labels, file, 0, FileChannel.MapMode.READ_WRITE, deleteOnClose);
+    }
+
+    /**
+     * Maps the triangle starting {@code offset} bytes into {@code file}. With
+     * {@link FileChannel.MapMode#PRIVATE} updates stay in memory (copy-on-write) and the file is
+     * never modified, which lets clustering run directly on a shared, read-only copy.
+     */
+    MappedDistanceMatrix(String[] labels, Path file, long offset, FileChannel.MapMode mode, boolean deleteOnClose)
+            throws IOException {
+        super(labels);
+        this.file = file;
+        this.deleteOnClose = deleteOnClose;
+        long cells = triangleSize(labels.length);
+        int count = (int) ((cells + SEGMENT_MASK) >>> SEGMENT_SHIFT);
+        this.segments = new DoubleBuffer[count];
+        StandardOpenOption[] options = mode == FileChannel.MapMode.READ_WRITE
+                ? new StandardOpenOption[] {StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE}
+                : new StandardOpenOption[] {StandardOpenOption.READ, StandardOpenOption.WRITE};
+        try (FileChannel ch = FileChannel.open(file, options)) {
+            for (int s = 0; s < count; s++) {
+                long first = (long) s << SEGMENT_SHIFT;
+                long len = Math.min(1L << SEGMENT_SHIFT, cells - first);
+                segments[s] = ch.map(mode, offset + first * Double.BYTES, len * Double.BYTES)
+                        .order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer();
+            }
+        }
+    }
+
+    /** A matrix in a fresh temporary file under {@code dir}, deleted again on {@link #close()}. */
+    static MappedDistanceMatrix temporary(String[] labels, Path dir) throws IOException {
+        Files.createDirectories(dir);
+        return new MappedDistanceMatrix(labels, Files.createTempFile(dir, "distances-", ".tri"), true);
+    }
+
+    /**
+     * A read-write copy of the triangle starting {@code offset} bytes into {@code source}, in a fresh
+     * temporary file under {@code dir} that is deleted again on {@link #close()}.
+     */
+    static MappedDistanceMatrix copyOf(String[] labels, Path source, long offset, Path dir) throws IOException {
+        Files.createDirectories(dir);
+        Path copy = Files.createTempFile(dir, "distances-", ".tri");
+        try {
+            long bytes = triangleSize(labels.length) * Double.BYTES;
+            try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+                 FileChannel out = FileChannel.open(copy, StandardOpenOption.WRITE)) {
+                for (long done = 0; done < bytes; ) {
+                    long moved = in.transferTo(offset + done, bytes - done, out);
+                    if (moved <= 0) throw new IOException(source + ": truncated matrix");
+                    done += moved;
+                }
+            }
+            return new MappedDistanceMatrix(labels, copy, true);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(copy);
+            throw e;
+        }
+    }
+
+    @Override
+    double getPacked(long index) {
+        return segments[(int) (index >>> SEGMENT_SHIFT)].get((int) (index & SEGMENT_MASK));
+    }
+
+    @Override
+    void setPacked(long index, double d) {
+        segments[(int) (index >>> SEGMENT_SHIFT)].put((int) (index & SEGMENT_MASK), d);
+    }
+
+    @Override
+    public void close() throws IOException {
+        // the mapping stays valid until collected; on POSIX systems deleting the file is still safe
+        if (deleteOnClose) Files.deleteIfExists(file);
+    }
+}
@@ -0,0 +1,33 @@
+package io.github.falabdullateef;
+
+import java.util.Locale;
+
+/** Where a {@link DistanceMatrix} keeps its cells. */
+enum MatrixBackend {
+    /** {@code double[]} on the Java heap. */
+    HEAP,
+    /** Memory-mapped temporary file; for taxa counts whose triangle does not fit the heap. */
+    MMAP,
+    /**
+     * HEAP while the triangle, plus NJ's sorted rows which stay on the heap either way, fits in half
+     * the maximum heap (and the triangle in one array), otherwise MMAP.
+     */
+    AUTO;
+
+    static MatrixBackend parse(String s) {
+        try {
+            return valueOf(s.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown matrix backend: " + s);
+        }
+    }
+
+    /** Resolve AUTO for a matrix over n taxa that {@code method} will cluster. */
+    MatrixBackend resolve(int n, ClusterMethod method) {
+        if (this != AUTO) return this;
+        long cells = DistanceMatrix.triangleSize(n);
+        long heap = cells * Double.BYTES + (method == ClusterMethod.NJ ? NeighborJoiningEngine.rowBytes(n) : 0);
+        boolean fits = cells <= Integer.MAX_VALUE - 8 && heap <= Runtime.getRuntime().maxMemory() / 2;
+        return fits ? HEAP : MMAP;
+    }
+}
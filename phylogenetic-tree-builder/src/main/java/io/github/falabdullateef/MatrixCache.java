@@ -0,0 +1,266 @@
+package io.github.falabdullateef;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * On-disk cache of distance matrices, keyed by a SHA-256 of the taxon names, the packed sequences
+ * and the distance metric, so a rebuild with other clustering settings skips the distance phase.
+ *
+ * <p>One file per entry, {@code <key>.dmat}: the magic {@code PTBDMAT1}, the taxon count and the
+ * length of the label block (little-endian ints), the labels (int length + UTF-8 bytes each), zero
+ * padding to a multiple of 8, then the packed lower triangle as little-endian doubles, exactly as
+ * {@link MappedDistanceMatrix} lays it out. A hit maps the triangle copy-on-write when the matrix
+ * fits the heap anyway, and otherwise clusters a temporary copy of it, so the entry stays intact
+ * for the next run either way.
+ *
+ * <p>Entries are written to a temporary file and moved into place, so concurrent runs never see a
+ * partial entry. The directory is kept under {@code maxBytes} by deleting the least recently used
+ * entries; hits refresh an entry's modification time.
+ */
+final class MatrixCache {
+    private static final byte[] MAGIC = "PTBDMAT1".getBytes(StandardCharsets.US_ASCII);
+    private static final int HEADER_BYTES = MAGIC.length + 2 * Integer.BYTES;
+    private static final String SUFFIX = ".dmat";
+    private static final int CHUNK_CELLS = 1 << 16;
+
+    private final Path dir;
+    private final long maxBytes;
+
+    MatrixCache(Path dir, long maxBytes) {
+        if (maxBytes < 0) throw new IllegalArgumentException("maxBytes must be >= 0, got " + maxBytes);
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+    }
+
+    /** Hex SHA-256 of everything the distances depend on. */
+    static String key(Alignment alignment, String metric) {
+        MessageDigest digest = sha256();
+        PackedSequences seqs = alignment.sequences;
+        ByteBuffer buf = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+        buf.put(MAGIC).put(metric.getBytes(StandardCharsets.UTF_8)).put((byte) 0);
+        buf.put((byte) (seqs.binary ? 1 : 0)).putInt(seqs.count).putInt(seqs.length);
+        putLabels(digest, buf, alignment.names);
+        for (long word : seqs.bits) update(digest, buf, Long.BYTES).putLong(word);
+        if (seqs.masks != null) {
+            for (long word : seqs.masks) update(digest, buf, Long.BYTES).putLong(word);
+        }
+        for (int i = 0; i < seqs.count; i++) {
+            int[] sites = seqs.oddSites(i);
+            char[] chars = seqs.oddChars(i);
+            update(digest, buf, Integer.BYTES).putInt(sites.length);
+            for (int k = 0; k < sites.length; k++) {
+                update(digest, buf, Integer.BYTES + Character.BYTES).putInt(sites[k]).putChar(chars[k]);
+            }
+        }
+        return hex(digest, buf);
+    }
+
+    /**
+     * Hex SHA-256 of a matrix given as input (read from a file or sketched): its labels and
+     * triangle. Call before clustering modifies it.
+     */
+    static String key(DistanceMatrix matrix) {
+        MessageDigest digest = sha256();
+        ByteBuffer buf = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+        buf.put(MAGIC).put("matrix".getBytes(StandardCharsets.UTF_8)).put((byte) 0).putInt(matrix.size());
+        putLabels(digest, buf, matrix.labels());
+        long cells = DistanceMatrix.triangleSize(matrix.size());
+        for (long k = 0; k < cells; k++) update(digest, buf, Double.BYTES).putDouble(matrix.getPacked(k));
+        return hex(digest, buf);
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // every JRE ships SHA-256
+        }
+    }
+
+    private static void putLabels(MessageDigest digest, ByteBuffer buf, String[] labels) {
+        for (String name : labels) {
+            byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+            update(digest, buf, Integer.BYTES).putInt(bytes.length);
+            if (bytes.length > buf.remaining()) {
+                update(digest, buf, buf.capacity());
+                digest.update(bytes);
+            } else {
+                buf.put(bytes);
+            }
+        }
+    }
+
+    private static String hex(MessageDigest digest, ByteBuffer buf) {
+        buf.flip();
+        digest.update(buf);
+        StringBuilder hex = new StringBuilder(64);
+        for (byte b : digest.digest()) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
+    /** Flushes {@code buf} into the digest when fewer than {@code bytes} bytes are left. */
+    private static ByteBuffer update(MessageDigest digest, ByteBuffer buf, int bytes) {
+        if (buf.remaining() < bytes) {
+            buf.flip();
+            digest.update(buf);
+            buf.clear();
+        }
+        return buf;
+    }
+
+    /**
+     * The cached matrix for {@code key}, opened through {@link TreeBuilder#mapCopy} so clustering
+     * leaves the entry intact, or null on a miss. Entries whose labels differ from {@code labels} or
+     * that are truncated count as misses (and are dropped).
+     */
+    DistanceMatrix load(String key, String[] labels, TreeBuilder builder) throws IOException {
+        Path file = dir.resolve(key + SUFFIX);
+        if (!Files.isRegularFile(file)) return null;
+        long offset;
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            offset = readHeader(ch, labels);
+        }
+        if (offset < 0) {
+            Files.deleteIfExists(file);
+            return null;
+        }
+        Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+        return builder.mapCopy(labels, file, offset);
+    }
+
+    /** Offset of the triangle, or -1 when the entry does not match {@code labels} or is damaged. */
+    private static long readHeader(FileChannel ch, String[] labels) throws IOException {
+        long size = ch.size();
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        if (size < HEADER_BYTES || ch.read(header, 0) != HEADER_BYTES) return -1;
+        header.flip();
+        byte[] magic = new byte[MAGIC.length];
+        header.get(magic);
+        int n = header.getInt();
+        int labelBytes = header.getInt();
+        if (!Arrays.equals(magic, MAGIC) || n != labels.length || labelBytes < 0 || labelBytes > size - HEADER_BYTES) {
+            return -1;
+        }
+        long offset = align(HEADER_BYTES + (long) labelBytes);
+        if (size != offset + DistanceMatrix.triangleSize(n) * Double.BYTES) return -1;
+        ByteBuffer block = ByteBuffer.allocate(labelBytes).order(ByteOrder.LITTLE_ENDIAN);
+        while (block.hasRemaining()) {
+            if (ch.read(block, HEADER_BYTES + block.position()) < 0) return -1;
+        }
+        block.flip();
+        for (String label : labels) {
+            if (block.remaining() < Integer.BYTES) return -1;
+            int length = block.getInt();
+            if (length < 0 || length > block.remaining()) return -1;
+            byte[] bytes = new byte[length];
+            block.get(bytes);
+            if (!label.equals(new String(bytes, StandardCharsets.UTF_8))) return -1;
+        }
+        return offset;
+    }
+
+    /**
+     * Stores a freshly computed matrix under {@code key} (call before clustering modifies it), then
+     * evicts old entries. Matrices larger than the whole cache are not stored.
+     */
+    void store(String key, DistanceMatrix matrix) throws IOException {
+        int n = matrix.size();
+        List<byte[]> labels = new ArrayList<>(n);
+        int labelBytes = 0;
+        for (int i = 0; i < n; i++) {
+            byte[] bytes = matrix.label(i).getBytes(StandardCharsets.UTF_8);
+            labels.add(bytes);
+            labelBytes += Integer.BYTES + bytes.length;
+        }
+        long offset = align(HEADER_BYTES + (long) labelBytes);
+        long cells = DistanceMatrix.triangleSize(n);
+        if (offset + cells * Double.BYTES > maxBytes) return;
+
+        Files.createDirectories(dir);
+        Path tmp = Files.createTempFile(dir, key, ".tmp");
+        try {
+            try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                ByteBuffer head = ByteBuffer.allocate((int) offset).order(ByteOrder.LITTLE_ENDIAN);
+                head.put(MAGIC).putInt(n).putInt(labelBytes);
+                for (byte[] bytes : labels) head.putInt(bytes.length).put(bytes);
+                head.position((int) offset);
+                head.flip();
+                writeFully(ch, head);
+                ByteBuffer buf = ByteBuffer.allocateDirect(CHUNK_CELLS * Double.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+                for (long start = 0; start < cells; start += CHUNK_CELLS) {
+                    long end = Math.min(cells, start + CHUNK_CELLS);
+                    buf.clear();
+                    for (long k = start; k < end; k++) buf.putDouble(matrix.getPacked(k));
+                    buf.flip();
+                    writeFully(ch, buf);
+                }
+            }
+            Files.move(tmp, dir.resolve(key + SUFFIX), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+        evict(key + SUFFIX);
+    }
+
+    private static void writeFully(FileChannel ch, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) ch.write(buf);
+    }
+
+    /** Deletes least recently used entries (never {@code keep}) until the cache fits {@code maxBytes}. */
+    private void evict(String keep) throws IOException {
+        List<Path> entries = new ArrayList<>();
+        List<BasicFileAttributes> attrs = new ArrayList<>();
+        long total = 0;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "*" + SUFFIX)) {
+            for (Path entry : stream) {
+                BasicFileAttributes a;
+                try {
+                    a = Files.readAttributes(entry, BasicFileAttributes.class);
+                } catch (IOException e) {
+                    continue; // removed by a concurrent run
+                }
+                entries.add(entry);
+                attrs.add(a);
+                total += a.size();
+            }
+        }
+        if (total <= maxBytes) return;
+        Integer[] order = new Integer[entries.size()];
+        for (int k = 0; k < order.length; k++) order[k] = k;
+        Arrays.sort(order, Comparator.comparing((Integer k) -> attrs.get(k).lastModifiedTime()));
+        for (int k : order) {
+            if (total <= maxBytes) break;
+            Path entry = entries.get(k);
+            if (entry.getFileName().toString().equals(keep)) continue;
+            try {
+                Files.deleteIfExists(entry);
+            } catch (IOException e) {
+                continue; // still mapped elsewhere on systems that lock mapped files
+            }
+            total -= attrs.get(k).size();
+        }
+    }
+
+    private static long align(long bytes) {
+        return (bytes + Long.BYTES - 1) & -Long.BYTES;
+    }
+}
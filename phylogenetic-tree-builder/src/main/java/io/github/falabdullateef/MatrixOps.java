@@ -1,38 +1,44 @@
 package io.github.falabdullateef;
 
-import java.util.*;
-
 final class MatrixOps {
     private MatrixOps() {}
 
-    static double getDistance(Map<String, Map<String, Double>> matrix, String a, String b) {
-        if (a.equals(b)) return 0.0;
-        Map<String, Double> rowA = matrix.get(a);
-        if (rowA != null && rowA.containsKey(b)) return rowA.get(b);
-        Map<String, Double> rowB = matrix.get(b);
-        if (rowB != null && rowB.containsKey(a)) return rowB.get(a);
-        return Double.POSITIVE_INFINITY;
+    static double getDistance(DistanceMatrix matrix, int a, int b) {
+        return a == b ? 0.0 : matrix.get(a, b);
+    }
+
+    /**
+     * Fold a (possibly asymmetric or partially filled) square matrix into a packed triangle.
+     * Missing cells are marked with NaN: one-sided entries are mirrored, mismatched pairs averaged,
+     * and pairs missing on both sides become +infinity.
+     */
+    static DistanceMatrix symmetrize(String[] labels, double[][] square) {
+        DistanceMatrix matrix = new HeapDistanceMatrix(labels);
+        try (BuildStats.Timer timer = BuildStats.time(null, BuildStats.Phase.SYMMETRIZE)) {
+            timer.items(DistanceMatrix.triangleSize(labels.length));
+            fold(matrix, square);
+        }
+        return matrix;
     }
 
-    static void symmetrize(Map<String, Map<String, Double>> matrix) {
-        List<String> labels = new ArrayList<>(matrix.keySet());
-        for (String i : labels) matrix.computeIfAbsent(i, k -> new HashMap<>()).put(i, 0.0);
-        for (String i : labels) {
-            for (String j : labels) {
-                if (i.equals(j)) continue;
-                Map<String, Double> rowI = matrix.get(i);
-                Double dij = rowI != null ? rowI.get(j) : null;
-                Map<String, Double> rowJ = matrix.get(j);
-                Double dji = rowJ != null ? rowJ.get(i) : null;
-                if (dij == null && dji != null) {
-                    matrix.get(i).put(j, dji);
-                } else if (dji == null && dij != null) {
-                    matrix.get(j).put(i, dij);
-                } else if (dij != null && dji != null && Math.abs(dij - dji) > 1e-9) {
-                    double avg = (dij + dji) / 2.0;
-                    matrix.get(i).put(j, avg);
-                    matrix.get(j).put(i, avg);
+    private static void fold(DistanceMatrix matrix, double[][] square) {
+        for (int i = 0; i < matrix.size(); i++) {
+            for (int j = 0; j < i; j++) {
+                double dij = square[i][j];
+                double dji = square[j][i];
+                double d;
+                if (Double.isNaN(dij) && Double.isNaN(dji)) {
+                    d = Double.POSITIVE_INFINITY;
+                } else if (Double.isNaN(dij)) {
+                    d = dji;
+                } else if (Double.isNaN(dji)) {
+                    d = dij;
+                } else if (Math.abs(dij - dji) > 1e-9) {
+                    d = (dij + dji) / 2.0;
+                } else {
+                    d = dij;
                 }
+                matrix.set(i, j, d);
             }
         }
     }
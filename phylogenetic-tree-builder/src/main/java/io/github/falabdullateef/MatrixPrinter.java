@@ -1,28 +1,38 @@
 package io.github.falabdullateef;
 
+import java.io.PrintStream;
 import java.util.*;
 
 final class MatrixPrinter {
     private MatrixPrinter() {}
 
-    static void printUpperTriangle(Map<String, Map<String, Double>> distanceMatrix, java.util.function.BiFunction<String,String,Double> distanceFn) {
-        List<String> labels = new ArrayList<>(distanceMatrix.keySet());
-        Collections.sort(labels);
-        System.out.print("\t");
-        for (String col : labels) System.out.print(col + "\t");
-        System.out.println();
-        for (int i = 0; i < labels.size(); i++) {
-            String row = labels.get(i);
-            System.out.print(row + "\t");
-            for (int j = 0; j < labels.size(); j++) {
+    /** Rows and columns are the active clusters, named and sorted by their tree node's display name. */
+    static void printUpperTriangle(DistanceMatrix distanceMatrix, TreeNode[] nodes, PrintStream out) {
+        List<Integer> ids = new ArrayList<>();
+        for (int id = 0; id < distanceMatrix.size(); id++) {
+            if (distanceMatrix.isActive(id)) ids.add(id);
+        }
+        ids.sort((a, b) -> TreeNode.compareNames(nodes[a], nodes[b]));
+        String[] names = new String[distanceMatrix.size()];
+        for (int id : ids) names[id] = nodes[id].name();
+        StringBuilder line = new StringBuilder(16 * (ids.size() + 1)).append('\t');
+        for (int col : ids) line.append(names[col]).append('\t');
+        out.println(line);
+        // one write per row; the trace runs once per merge, so it is O(n^3) characters in total
+        Formatter cell = new Formatter(line, Locale.US);
+        for (int i = 0; i < ids.size(); i++) {
+            int row = ids.get(i);
+            line.setLength(0);
+            line.append(names[row]).append('\t');
+            for (int j = 0; j < ids.size(); j++) {
                 if (j < i) {
-                    System.out.print("\t");
+                    line.append('\t');
                 } else {
-                    double d = distanceFn.apply(row, labels.get(j));
-                    System.out.print(String.format(Locale.US, "%.2f\t", d));
+                    double d = MatrixOps.getDistance(distanceMatrix, row, ids.get(j));
+                    cell.format("%.2f\t", d);
                 }
             }
-            System.out.println();
+            out.println(line);
         }
     }
 }
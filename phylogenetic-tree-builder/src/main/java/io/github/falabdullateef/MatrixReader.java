@@ -0,0 +1,422 @@
+package io.github.falabdullateef;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Distance matrix files, read straight into a {@link DistanceMatrix} on the builder's backend:
+ * <ul>
+ *   <li>PHYLIP (relaxed: whitespace-separated labels): the taxon count, then one row per taxon,
+ *       either square or lower-triangular (with or without the diagonal), detected from the
+ *       first row. Rows may wrap over several lines.</li>
+ *   <li>CSV: a header of labels (the first cell is ignored), then one row per taxon with its label
+ *       first. Empty cells and short rows are missing values.</li>
+ *   <li>Binary triangle: the packed lower triangle as little-endian doubles, exactly the
+ *       {@link MappedDistanceMatrix} layout, so it is mapped or copied rather than parsed. Labels come from
+ *       {@code <file>.labels} (one per line) when present, else 1..n.</li>
+ * </ul>
+ * Text is tokenized byte by byte with a hand-rolled number parser (exact for up to 15 significant
+ * digits and small exponents, {@link Double#parseDouble} otherwise). Square matrices are folded as
+ * they stream in, with the same rules as {@link MatrixOps#symmetrize}: the upper cell is parked
+ * in the triangle until its mirror arrives. {@code ?}, {@code NA} and {@code NaN} are missing values.
+ */
+final class MatrixReader {
+    private MatrixReader() {}
+
+    enum Format {
+        PHYLIP, CSV, BINTRI;
+
+        static Format parse(String s) {
+            try {
+                return valueOf(s.trim().toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Unknown matrix format: " + s);
+            }
+        }
+
+        /** Guess from the file extension: .csv, .bin/.tri, anything else PHYLIP. */
+        static Format detect(Path path) {
+            String name = path.getFileName().toString().toLowerCase(Locale.ROOT);
+            if (name.endsWith(".csv")) return CSV;
+            if (name.endsWith(".bin") || name.endsWith(".tri") || name.endsWith(".bintri")) return BINTRI;
+            return PHYLIP;
+        }
+    }
+
+    static DistanceMatrix read(Path path, Format format, TreeBuilder builder, BuildStats stats) throws IOException {
+        try (BuildStats.Timer timer = BuildStats.time(stats, BuildStats.Phase.PARSE)) {
+            DistanceMatrix matrix;
+            switch (format) {
+                case CSV:
+                    matrix = readCsv(path, builder);
+                    break;
+                case BINTRI:
+                    matrix = readTriangle(path, builder);
+                    break;
+                default:
+                    matrix = readPhylip(path, builder);
+            }
+            timer.items(matrix.size());
+            if (stats != null) {
+                stats.taxa = matrix.size();
+                stats.matrixBackend = matrix instanceof MappedDistanceMatrix ? "mmap" : "heap";
+                stats.matrixAllocated(matrix);
+            }
+            return matrix;
+        }
+    }
+
+    private static DistanceMatrix readPhylip(Path path, TreeBuilder builder) throws IOException {
+        try (Cursor in = new Cursor(path)) {
+            in.skipBlank();
+            double count = in.number(-1);
+            if (!(count >= 1 && count <= Integer.MAX_VALUE && count == Math.rint(count))) {
+                throw in.error("expected the number of taxa");
+            }
+            int n = (int) count;
+            in.skipLine(); // rest of the header line
+            String[] labels = new String[n];
+            DistanceMatrix matrix = builder.newMatrix(labels);
+            try {
+                // the first row decides the layout: no value = strict lower triangle, one = lower with diagonal
+                in.skipBlank();
+                labels[0] = in.token(-1);
+                int onFirstLine = 0;
+                double[] first = new double[n];
+                for (in.skipSpaces(); onFirstLine < n && !in.atLineEnd(); in.skipSpaces()) {
+                    first[onFirstLine++] = in.number(-1);
+                }
+                boolean square = onFirstLine > 1;
+                boolean diagonal = onFirstLine == 1;
+                if (square) {
+                    for (int j = 0; j < n; j++) {
+                        if (j >= onFirstLine) {
+                            in.skipBlank();
+                            first[j] = in.number(-1);
+                        }
+                        if (j > 0) matrix.set(0, j, first[j]);
+                    }
+                }
+                for (int i = 1; i < n; i++) {
+                    in.skipBlank();
+                    if (in.peek() < 0) throw in.error("expected " + n + " rows, found " + i);
+                    labels[i] = in.token(-1);
+                    int cells = square ? n : diagonal ? i + 1 : i;
+                    for (int j = 0; j < cells; j++) {
+                        in.skipBlank();
+                        double d = in.number(-1);
+                        if (j < i) fold(matrix, i, j, d, square);
+                        else if (j > i) matrix.set(i, j, d); // parked until row j mirrors it
+                    }
+                }
+                return matrix;
+            } catch (IOException | RuntimeException e) {
+                matrix.close();
+                throw e;
+            }
+        }
+    }
+
+    private static DistanceMatrix readCsv(Path path, TreeBuilder builder) throws IOException {
+        try (Cursor in = new Cursor(path)) {
+            List<String> header = new ArrayList<>();
+            in.cell(); // corner cell
+            while (in.peek() == ',') {
+                in.next();
+                header.add(in.cell());
+            }
+            in.skipLine();
+            int n = header.size();
+            if (n == 0) throw in.error("expected a header row of labels");
+            String[] labels = header.toArray(new String[0]);
+            DistanceMatrix matrix = builder.newMatrix(labels);
+            try {
+                for (int row = 0; row < n; row++) {
+                    in.skipBlank();
+                    if (in.peek() < 0) throw in.error("expected " + n + " rows, found " + row);
+                    String label = in.cell();
+                    if (!label.equals(labels[row])) {
+                        throw in.error("row " + (row + 1) + " is '" + label + "', expected '" + labels[row] + "'");
+                    }
+                    int j = 0;
+                    for (; j < n && in.peek() == ','; j++) {
+                        in.next();
+                        in.skipSpaces();
+                        double d = in.peek() == ',' || in.atLineEnd() ? Double.NaN : in.number(',');
+                        in.skipSpaces();
+                        if (j < row) fold(matrix, row, j, d, true);
+                        else if (j > row) matrix.set(row, j, d);
+                    }
+                    for (; j < n; j++) { // short row: the rest is missing
+                        if (j < row) fold(matrix, row, j, Double.NaN, true);
+                        else if (j > row) matrix.set(row, j, Double.NaN);
+                    }
+                    if (!in.atLineEnd()) throw in.error("more than " + n + " values in row " + label);
+                    in.skipLine();
+                }
+                return matrix;
+            } catch (IOException | RuntimeException e) {
+                matrix.close();
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Stores cell (i, j), j < i. For square input the mirrored cell (j, i) was parked at the same
+     * index by row j; the two are combined as {@link MatrixOps#symmetrize} would.
+     */
+    private static void fold(DistanceMatrix matrix, int i, int j, double d, boolean square) {
+        double u = square ? matrix.get(i, j) : Double.NaN;
+        if (Double.isNaN(d) && Double.isNaN(u)) d = Double.POSITIVE_INFINITY;
+        else if (Double.isNaN(d)) d = u;
+        else if (!Double.isNaN(u) && Math.abs(d - u) > 1e-9) d = (d + u) / 2.0;
+        matrix.set(i, j, d);
+    }
+
+    private static DistanceMatrix readTriangle(Path path, TreeBuilder builder) throws IOException {
+        long size = Files.size(path);
+        long cells = size / Double.BYTES;
+        int n = (int) Math.round((1 + Math.sqrt(1 + 8.0 * cells)) / 2);
+        if (size % Double.BYTES != 0 || DistanceMatrix.triangleSize(n) != cells) {
+            throw new IllegalArgumentException(path + ": " + size + " bytes is not a packed triangle of doubles");
+        }
+        String[] labels = new String[n];
+        Path labelFile = Paths.get(path + ".labels");
+        if (Files.isRegularFile(labelFile)) {
+            List<String> lines = Files.readAllLines(labelFile, StandardCharsets.UTF_8);
+            while (!lines.isEmpty() && lines.get(lines.size() - 1).isBlank()) lines.remove(lines.size() - 1);
+            if (lines.size() != n) {
+                throw new IllegalArgumentException(labelFile + ": " + lines.size() + " labels for " + n + " taxa");
+            }
+            for (int i = 0; i < n; i++) labels[i] = lines.get(i).trim();
+        } else {
+            for (int i = 0; i < n; i++) labels[i] = Integer.toString(i + 1);
+        }
+        if (Files.isWritable(path)) {
+            // clustering never updates the file: copy-on-write, or a temporary copy if bound for a mapped file
+            return builder.mapCopy(labels, path, 0);
+        }
+        // a private mapping needs a writable channel; copy read-only files instead
+        DistanceMatrix matrix = builder.newMatrix(labels);
+        try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer buf = ByteBuffer.allocateDirect(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+            long index = 0;
+            while (index < cells) {
+                buf.clear();
+                if (ch.read(buf, index * Double.BYTES) < 0) throw new IOException(path + ": unexpected end of file");
+                buf.flip();
+                while (buf.remaining() >= Double.BYTES) matrix.setPacked(index++, buf.getDouble());
+            }
+        } catch (IOException | RuntimeException e) {
+            matrix.close();
+            throw e;
+        }
+        return matrix;
+    }
+
+    /** Buffered byte cursor over a text file, tracking line numbers for error messages. */
+    private static final class Cursor implements Closeable {
+        private static final double[] POW10 = new double[23];
+
+        static {
+            POW10[0] = 1;
+            for (int k = 1; k < POW10.length; k++) POW10[k] = POW10[k - 1] * 10;
+        }
+
+        private final Path path;
+        private final FileChannel ch;
+        private final byte[] buf = new byte[1 << 16];
+        private final ByteBuffer wrapped = ByteBuffer.wrap(buf);
+        private int pos, limit;
+        private long line = 1;
+        private byte[] scratch = new byte[64];
+
+        Cursor(Path path) throws IOException {
+            this.path = path;
+            this.ch = FileChannel.open(path, StandardOpenOption.READ);
+        }
+
+        int peek() throws IOException {
+            if (pos == limit) {
+                wrapped.clear();
+                int read;
+                do {
+                    read = ch.read(wrapped);
+                } while (read == 0);
+                if (read < 0) return -1;
+                pos = 0;
+                limit = read;
+            }
+            return buf[pos] & 0xFF;
+        }
+
+        int next() throws IOException {
+            int c = peek();
+            if (c >= 0) {
+                pos++;
+                if (c == '\n') line++;
+            }
+            return c;
+        }
+
+        boolean atLineEnd() throws IOException {
+            int c = peek();
+            return c < 0 || c == '\n' || c == '\r';
+        }
+
+        /** Skips spaces and tabs, not line breaks. */
+        void skipSpaces() throws IOException {
+            for (int c; (c = peek()) == ' ' || c == '\t'; ) pos++;
+        }
+
+        /** Skips all whitespace, line breaks included. */
+        void skipBlank() throws IOException {
+            for (int c; (c = peek()) >= 0 && c <= ' '; ) next();
+        }
+
+        /** Skips to the start of the next line. */
+        void skipLine() throws IOException {
+            for (int c; (c = next()) >= 0 && c != '\n'; ) { }
+        }
+
+        /** Bytes up to the next whitespace (or {@code delim}), as UTF-8. */
+        String token(int delim) throws IOException {
+            int len = 0;
+            for (int c; (c = peek()) > ' ' && c != delim; pos++) len = keep(len, c);
+            if (len == 0) throw error("expected a label");
+            return new String(scratch, 0, len, StandardCharsets.UTF_8);
+        }
+
+        /** One CSV cell as text: optionally double-quoted ("" escapes), trimmed otherwise. */
+        String cell() throws IOException {
+            skipSpaces();
+            int len = 0;
+            if (peek() == '"') {
+                pos++;
+                for (int c; ; ) {
+                    c = next();
+                    if (c < 0) throw error("unterminated quoted cell");
+                    if (c == '"') {
+                        if (peek() != '"') break;
+                        pos++;
+                    }
+                    len = keep(len, c);
+                }
+                skipSpaces();
+                return new String(scratch, 0, len, StandardCharsets.UTF_8);
+            }
+            for (int c; (c = peek()) >= 0 && c != ',' && c != '\n' && c != '\r'; pos++) len = keep(len, c);
+            while (len > 0 && scratch[len - 1] <= ' ') len--;
+            return new String(scratch, 0, len, StandardCharsets.UTF_8);
+        }
+
+        /**
+         * A decimal number ending at whitespace, {@code delim} or the end of the file. Up to 15
+         * significant digits with a power of ten up to 22 are computed exactly as
+         * {@code mantissa * 10^e} or {@code mantissa / 10^-e}; anything else goes through
+         * {@link Double#parseDouble}.
+         */
+        double number(int delim) throws IOException {
+            int len = 0;
+            boolean negative = false;
+            int c = peek();
+            if (c == '-' || c == '+') {
+                negative = c == '-';
+                len = keep(len, c);
+                pos++;
+            }
+            long mantissa = 0;
+            int digits = 0, exponent = 0;
+            boolean any = false, exact = true;
+            for (; (c = peek()) >= '0' && c <= '9'; pos++) {
+                len = keep(len, c);
+                any = true;
+                if (digits < 18) {
+                    mantissa = mantissa * 10 + (c - '0');
+                    if (mantissa != 0) digits++;
+                } else {
+                    exponent++;
+                    exact = false;
+                }
+            }
+            if (c == '.') {
+                len = keep(len, c);
+                pos++;
+                for (; (c = peek()) >= '0' && c <= '9'; pos++) {
+                    len = keep(len, c);
+                    any = true;
+                    if (digits < 18) {
+                        mantissa = mantissa * 10 + (c - '0');
+                        if (mantissa != 0) digits++;
+                        exponent--;
+                    } else {
+                        exact = false;
+                    }
+                }
+            }
+            if (any && (c == 'e' || c == 'E')) {
+                len = keep(len, c);
+                pos++;
+                boolean negativeExp = false;
+                if ((c = peek()) == '-' || c == '+') {
+                    negativeExp = c == '-';
+                    len = keep(len, c);
+                    pos++;
+                }
+                int e = 0;
+                boolean expDigits = false;
+                for (; (c = peek()) >= '0' && c <= '9'; pos++) {
+                    len = keep(len, c);
+                    expDigits = true;
+                    if (e < 100000) e = e * 10 + (c - '0');
+                }
+                if (!expDigits) any = false;
+                exponent += negativeExp ? -e : e;
+            }
+            while ((c = peek()) > ' ' && c != delim) {
+                len = keep(len, c);
+                pos++;
+                any = false; // trailing garbage: let the slow path decide
+            }
+            if (any && exact && digits <= 15 && exponent >= -22 && exponent <= 22) {
+                double value = exponent >= 0 ? mantissa * POW10[exponent] : mantissa / POW10[-exponent];
+                return negative ? -value : value;
+            }
+            String text = new String(scratch, 0, len, StandardCharsets.US_ASCII);
+            if (text.equals("?") || text.equalsIgnoreCase("NA") || text.equalsIgnoreCase("NaN")) return Double.NaN;
+            try {
+                return Double.parseDouble(text);
+            } catch (NumberFormatException e) {
+                throw error(text.isEmpty() ? "expected a number" : "not a number: '" + text + "'");
+            }
+        }
+
+        private int keep(int len, int c) {
+            if (len == scratch.length) scratch = Arrays.copyOf(scratch, len * 2);
+            scratch[len] = (byte) c;
+            return len + 1;
+        }
+
+        IllegalArgumentException error(String message) {
+            return new IllegalArgumentException(path + ":" + line + ": " + message);
+        }
+
+        @Override
+        public void close() throws IOException {
+            ch.close();
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package io.github.falabdullateef;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/** Flight Recorder event spanning a single merge, including the distance matrix update. */
+@Name("io.github.falabdullateef.Merge")
+@Label("Cluster Merge")
+@Category("Phylogenetic Tree Builder")
+@Description("Two clusters joined into one")
+final class MergeEvent extends jdk.jfr.Event {
+    @Label("Kept ID")
+    int kept;
+
+    @Label("Removed ID")
+    int removed;
+
+    @Label("Clusters Left")
+    int remaining;
+
+    @Label("Height")
+    double height;
+}
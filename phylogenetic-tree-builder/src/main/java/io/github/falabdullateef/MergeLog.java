@@ -0,0 +1,250 @@
+package io.github.falabdullateef;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Compact binary log of one clustering run, streamed through a 64 KB buffer: a header (the magic
+ * {@code PTBMLOG2}, the method, the taxon count, then the labels as int length + UTF-8 bytes
+ * each), then one fixed-size record per merge: the kept and retired cluster IDs, the merged
+ * cluster's size and height, and the lengths of its left and right edges. Big-endian, as
+ * {@link DataOutputStream} writes it.
+ *
+ * <p>The records are enough to rebuild the forest at any step ({@link #readForest}) and, from the
+ * initial matrix, every intermediate matrix ({@link #replay}). That is how {@link Checkpoint}s
+ * restore the tree, and how the per-merge matrix view is produced offline.
+ */
+final class MergeLog implements Closeable {
+    private static final byte[] MAGIC = "PTBMLOG2".getBytes(StandardCharsets.US_ASCII);
+    static final int RECORD_BYTES = 3 * Integer.BYTES + 3 * Double.BYTES;
+
+    private final FileChannel channel;
+    private final DataOutputStream out;
+    private long records;
+
+    private MergeLog(FileChannel channel, long records) {
+        this.channel = channel;
+        this.out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16));
+        this.records = records;
+    }
+
+    /** Starts a new log for clustering {@code labels} with {@code method}, replacing any old file. */
+    static MergeLog create(Path file, ClusterMethod method, String[] labels) throws IOException {
+        if (file.getParent() != null) Files.createDirectories(file.getParent());
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        MergeLog log = new MergeLog(channel, 0);
+        log.out.write(MAGIC);
+        log.out.writeInt(method.ordinal());
+        log.out.writeInt(labels.length);
+        for (String label : labels) {
+            byte[] bytes = label.getBytes(StandardCharsets.UTF_8);
+            log.out.writeInt(bytes.length);
+            log.out.write(bytes);
+        }
+        return log;
+    }
+
+    /**
+     * Reopens a log to continue after its first {@code records} merges (as of a checkpoint); later
+     * records, from after the checkpoint, are cut off.
+     */
+    static MergeLog resume(Path file, long records) throws IOException {
+        long headerBytes = headerBytes(file);
+        long end = headerBytes + records * RECORD_BYTES;
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE);
+        if (channel.size() < end) {
+            channel.close();
+            throw new IOException(file + ": merge log is shorter than its checkpoint");
+        }
+        channel.truncate(end);
+        channel.position(end);
+        return new MergeLog(channel, records);
+    }
+
+    long records() {
+        return records;
+    }
+
+    void write(int kept, int removed, int size, TreeNode node) throws IOException {
+        out.writeInt(kept);
+        out.writeInt(removed);
+        out.writeInt(size);
+        out.writeDouble(node.height);
+        out.writeDouble(node.left.branchLength);
+        out.writeDouble(node.right.branchLength);
+        records++;
+    }
+
+    /** Pushes buffered records to the file and the file to the disk. */
+    void sync() throws IOException {
+        out.flush();
+        channel.force(false);
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+
+    /**
+     * Rebuilds the forest after the first {@code records} merges onto {@code nodes} (one leaf per
+     * taxon on entry), checking that the log belongs to {@code method} and {@code labels}.
+     */
+    static void readForest(Path file, ClusterMethod method, String[] labels, TreeNode[] nodes, long records) throws IOException {
+        try (DataInputStream in = open(file, method, labels)) {
+            for (long r = 0; r < records; r++) {
+                Record record = Record.read(in);
+                if (record == null) throw new IOException(file + ": merge log ends after " + r + " of " + records + " merges");
+                record.join(nodes, true);
+            }
+        }
+    }
+
+    /**
+     * Re-runs a logged clustering on its initial {@code matrix}: each merge updates the matrix and
+     * the forest in {@code nodes} as the engine did, then goes to {@code listener}.
+     */
+    static void replay(Path file, ClusterMethod method, DistanceMatrix matrix, TreeNode[] nodes, int[] sizes,
+                       ClusteringEngine.MergeListener listener) throws IOException {
+        String[] labels = matrix.labels();
+        try (DataInputStream in = open(file, method, labels)) {
+            for (Record record; (record = Record.read(in)) != null; ) {
+                int keep = record.kept, gone = record.removed;
+                if (!matrix.isActive(keep) || !matrix.isActive(gone) || keep == gone) {
+                    throw new IOException(file + ": merge of inactive clusters " + keep + " and " + gone);
+                }
+                // an NJ run ends by rooting the last two clusters, which leaves the matrix and forest alone
+                boolean root = method == ClusterMethod.NJ && matrix.activeCount() == 2;
+                if (!root) {
+                    double dij = matrix.get(keep, gone);
+                    for (int x = 0; x < matrix.size(); x++) {
+                        if (x == keep || x == gone || !matrix.isActive(x)) continue;
+                        double dk = matrix.get(keep, x), dg = matrix.get(gone, x);
+                        double d;
+                        // same updates as ClusteringEngine and NeighborJoiningEngine
+                        if (method == ClusterMethod.UPGMA) d = (sizes[keep] * dk + sizes[gone] * dg) / (sizes[keep] + sizes[gone]);
+                        else if (method == ClusterMethod.WPGMA) d = (dk + dg) / 2.0;
+                        else d = (dk + dg - dij) / 2.0;
+                        matrix.set(keep, x, d);
+                    }
+                    matrix.deactivate(gone);
+                }
+                TreeNode node = record.join(nodes, !root);
+                if (!root) {
+                    sizes[keep] = record.size;
+                    sizes[gone] = 0;
+                }
+                if (listener != null) listener.merged(keep, gone, node);
+            }
+        }
+    }
+
+    private static DataInputStream open(Path file, ClusterMethod method, String[] labels) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 1 << 16));
+        try {
+            byte[] magic = new byte[MAGIC.length];
+            in.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC)) throw new IOException(file + ": not a merge log");
+            int m = in.readInt();
+            if (m != method.ordinal()) throw new IllegalArgumentException(file + ": merge log is from another clustering method");
+            int n = in.readInt();
+            boolean same = n == labels.length;
+            for (int i = 0; i < n; i++) {
+                String label = new String(readLabel(in, file), StandardCharsets.UTF_8);
+                same = same && label.equals(labels[i]);
+            }
+            if (!same) throw new IllegalArgumentException(file + ": merge log is for other taxa");
+            return in;
+        } catch (EOFException e) {
+            in.close();
+            throw new IOException(file + ": truncated merge log header", e);
+        } catch (IOException | RuntimeException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    private static long headerBytes(Path file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 1 << 16))) {
+            long bytes = MAGIC.length + 2 * Integer.BYTES;
+            in.skipNBytes(MAGIC.length + Integer.BYTES);
+            int n = in.readInt();
+            for (int i = 0; i < n; i++) {
+                int length = in.readInt();
+                if (length < 0) throw new IOException(file + ": damaged merge log header");
+                in.skipNBytes(length);
+                bytes += Integer.BYTES + length;
+            }
+            return bytes;
+        } catch (EOFException e) {
+            throw new IOException(file + ": truncated merge log header", e);
+        }
+    }
+
+    private static byte[] readLabel(DataInputStream in, Path file) throws IOException {
+        int length = in.readInt();
+        if (length < 0) throw new IOException(file + ": damaged merge log header");
+        byte[] bytes = in.readNBytes(length);
+        if (bytes.length != length) throw new EOFException();
+        return bytes;
+    }
+
+    private static final class Record {
+        final int kept, removed, size;
+        final double height, leftBranch, rightBranch;
+
+        private Record(int kept, int removed, int size, double height, double leftBranch, double rightBranch) {
+            this.kept = kept;
+            this.removed = removed;
+            this.size = size;
+            this.height = height;
+            this.leftBranch = leftBranch;
+            this.rightBranch = rightBranch;
+        }
+
+        /** The next record, or null at the end of the log (a torn last record counts as the end). */
+        static Record read(DataInputStream in) throws IOException {
+            try {
+                return new Record(in.readInt(), in.readInt(), in.readInt(), in.readDouble(), in.readDouble(), in.readDouble());
+            } catch (EOFException e) {
+                return null;
+            }
+        }
+
+        /**
+         * Joins the two clusters of {@code nodes}, children ordered by name as the engines do; with
+         * {@code replace} the new node takes over the kept ID and the retired one is cleared.
+         */
+        TreeNode join(TreeNode[] nodes, boolean replace) throws IOException {
+            if (kept < 0 || removed < 0 || kept >= nodes.length || removed >= nodes.length
+                    || nodes[kept] == null || nodes[removed] == null) {
+                throw new IOException("Merge log joins missing clusters " + kept + " and " + removed);
+            }
+            boolean keptFirst = TreeNode.compareNames(nodes[kept], nodes[removed]) <= 0;
+            TreeNode left = keptFirst ? nodes[kept] : nodes[removed];
+            TreeNode right = keptFirst ? nodes[removed] : nodes[kept];
+            left.branchLength = leftBranch;
+            right.branchLength = rightBranch;
+            TreeNode node = new TreeNode(left, right);
+            node.height = height;
+            if (replace) {
+                nodes[kept] = node;
+                nodes[removed] = null;
+            }
+            return node;
+        }
+    }
+}
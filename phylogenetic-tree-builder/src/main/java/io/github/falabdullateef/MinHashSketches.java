@@ -0,0 +1,149 @@
+package io.github.falabdullateef;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Bottom-s MinHash sketches of unaligned DNA sequences: for each sequence, the {@code size}
+ * smallest distinct 64-bit hashes of its canonical k-mers (the smaller of a k-mer and its reverse
+ * complement, so strand does not matter). k-mers spanning a non-ACGT character are skipped.
+ *
+ * <p>Sketches are built in the single streaming pass over the FASTA file, one residue at a time,
+ * so memory is {@code 8 * size} bytes per sequence however long the genomes are, and sequences
+ * need not have equal lengths. {@link DistanceCalculators#mash} turns two sketches into a Mash
+ * distance.
+ */
+final class MinHashSketches {
+    static final int DEFAULT_K = 21;
+    static final int DEFAULT_SIZE = 1000;
+
+    final String[] names;
+    final int k;
+    final int size;
+    /** Sketch of sequence i: {@code hashes[i * size, i * size + lengths[i])}, ascending. */
+    final long[] hashes;
+    final int[] lengths;
+
+    private MinHashSketches(String[] names, int k, int size, long[] hashes, int[] lengths) {
+        this.names = names;
+        this.k = k;
+        this.size = size;
+        this.hashes = hashes;
+        this.lengths = lengths;
+    }
+
+    int count() { return names.length; }
+
+    static MinHashSketches read(Path path, int k, int size) throws IOException {
+        return read(path, k, size, null, GzipInput.DEFAULT_THREADS);
+    }
+
+    /**
+     * Sketches every record of a FASTA file, timing the pass as the parse phase of {@code stats}
+     * (may be null); BGZF input is inflated on up to {@code threads} threads.
+     */
+    static MinHashSketches read(Path path, int k, int size, BuildStats stats, int threads) throws IOException {
+        if (k < 1 || k > 31) throw new IllegalArgumentException("k must be in 1..31, got " + k);
+        if (size < 1) throw new IllegalArgumentException("Sketch size must be >= 1, got " + size);
+        try (BuildStats.Timer timer = BuildStats.time(stats, BuildStats.Phase.PARSE)) {
+            Sketcher sketcher = new Sketcher(k, size);
+            FastaReader.scan(path, sketcher, threads);
+            MinHashSketches sketches = new MinHashSketches(FastaReader.uniqueNames(sketcher.names), k, size,
+                    Arrays.copyOf(sketcher.hashes, sketcher.names.size() * size),
+                    Arrays.copyOf(sketcher.lengths, sketcher.names.size()));
+            timer.items(sketches.count());
+            if (stats != null) {
+                stats.taxa = sketches.count();
+                stats.sites = sketcher.residues;
+            }
+            return sketches;
+        }
+    }
+
+    /** Rolling canonical k-mer hashing into a bottom-s sketch per record. */
+    private static final class Sketcher implements FastaReader.RecordSink {
+        private final int k;
+        private final int size;
+        private final long kmerMask;
+        private final int topShift;
+        final List<String> names = new ArrayList<>();
+        long[] hashes = new long[0];
+        int[] lengths = new int[16];
+        long residues;
+
+        // current record: forward and reverse-complement k-mers, and how many valid bases end here
+        private long forward, reverse;
+        private int valid;
+        // candidates below the threshold; compacted to the smallest distinct values when full
+        private final long[] buffer;
+        private int buffered;
+        private long threshold;
+
+        Sketcher(int k, int size) {
+            this.k = k;
+            this.size = size;
+            this.kmerMask = (1L << (2 * k)) - 1;
+            this.topShift = 2 * (k - 1);
+            this.buffer = new long[Math.max(4 * size, 64)];
+        }
+
+        @Override
+        public void begin(String name) {
+            names.add(name);
+            forward = reverse = 0;
+            valid = 0;
+            buffered = 0;
+            threshold = Long.MAX_VALUE;
+        }
+
+        @Override
+        public void put(byte residue) {
+            residues++;
+            int code = PackedSequences.dnaCode((char) (residue & 0xFF));
+            if (code < 0) {
+                valid = 0;
+                return;
+            }
+            forward = ((forward << 2) | code) & kmerMask;
+            reverse = (reverse >>> 2) | ((long) (3 - code) << topShift);
+            if (++valid < k) return;
+            long hash = mix(Math.min(forward, reverse)) >>> 1; // non-negative, so signed order works
+            if (hash >= threshold) return;
+            buffer[buffered++] = hash;
+            if (buffered == buffer.length) compact();
+        }
+
+        @Override
+        public void end() {
+            compact();
+            int record = names.size() - 1;
+            if (hashes.length < (record + 1) * size) hashes = Arrays.copyOf(hashes, Math.max(size, hashes.length * 2));
+            if (lengths.length == record) lengths = Arrays.copyOf(lengths, record * 2);
+            System.arraycopy(buffer, 0, hashes, record * size, buffered);
+            lengths[record] = buffered;
+        }
+
+        /** Keeps the {@code size} smallest distinct candidates; once full, only smaller ones get in. */
+        private void compact() {
+            Arrays.sort(buffer, 0, buffered);
+            int unique = 0;
+            for (int a = 0; a < buffered && unique < size; a++) {
+                if (unique == 0 || buffer[a] != buffer[unique - 1]) buffer[unique++] = buffer[a];
+            }
+            buffered = unique;
+            if (unique == size) threshold = buffer[size - 1];
+        }
+
+        /** MurmurHash3 64-bit finalizer. */
+        private static long mix(long x) {
+            x ^= x >>> 33;
+            x *= 0xff51afd7ed558ccdL;
+            x ^= x >>> 33;
+            x *= 0xc4ceb9fe1a85ec53L;
+            return x ^ (x >>> 33);
+        }
+    }
+}
@@ -0,0 +1,257 @@
+package io.github.falabdullateef;
+
+import java.util.Arrays;
+
+/**
+ * Neighbor-Joining with RapidNJ-style search bounds.
+ *
+ * <p>Each cluster keeps a row of its distances sorted ascending. With u(i) = r(i)/(m-2), where r is
+ * the row sum and m the number of live clusters, the pair to join minimizes
+ * Q(i,j) = d(i,j) - u(i) - u(j). Because u(j) &lt;= max u, scanning a sorted row can stop as soon as
+ * d(i,j) - u(i) - max u exceeds the best Q found so far, which usually prunes almost all of the
+ * O(m^2) candidates.
+ *
+ * <p>Initial rows hold only lower IDs (each pair lives in exactly one row) and a joined cluster's row
+ * holds every live cluster, so a pair is always found in the row of its younger member. Joined
+ * clusters reuse a member's ID; entries that point at a retired or since-reused ID are skipped and
+ * dropped whenever the number of live clusters halves.
+ *
+ * <p>The rows are plain heap arrays whatever the matrix backend: one 8-byte entry per pair, as large
+ * as the triangle itself ({@link #rowBytes}). A mapped matrix moves only the triangle off the heap,
+ * so NJ over n taxa still needs about 8*n(n-1)/2 bytes of heap.
+ *
+ * <p>The unrooted result is returned rooted at the midpoint of the last remaining edge.
+ */
+final class NeighborJoiningEngine {
+
+    private final DistanceMatrix matrix;
+    private final TreeNode[] nodes;
+    private ClusteringEngine.MergeListener listener;
+
+    private final double[] rowSums;
+    /** Per ID: sortable float bits of the distance in the high word, column ID in the low word. */
+    private final long[][] rows;
+    private final int[] rowLen;
+    /** Join step at which the cluster currently holding an ID was created (0 for leaves). */
+    private final int[] born;
+    private int step;
+    private long comparisons;
+
+    NeighborJoiningEngine(DistanceMatrix matrix, TreeNode[] nodes) {
+        this(matrix, nodes, rowSums(matrix), new int[matrix.size()]);
+    }
+
+    /**
+     * Joins starting from the given row sums and join steps ({@code born}) of the active clusters,
+     * e.g. those of a run stopped part way, so it continues exactly as that run would have. The
+     * engine keeps both arrays up to date in place.
+     */
+    NeighborJoiningEngine(DistanceMatrix matrix, TreeNode[] nodes, double[] rowSums, int[] born) {
+        this.matrix = matrix;
+        this.nodes = nodes;
+        int n = matrix.size();
+        this.rowSums = rowSums;
+        this.rows = new long[n][];
+        this.rowLen = new int[n];
+        this.born = born;
+        for (int b : born) step = Math.max(step, b);
+    }
+
+    NeighborJoiningEngine onMerge(ClusteringEngine.MergeListener listener) {
+        this.listener = listener;
+        return this;
+    }
+
+    /**
+     * Sum of each active cluster's distances to the other active ones (0 for inactive IDs).
+     * Rejects matrices with an infinite or NaN distance, which would make every Q value NaN.
+     */
+    static double[] rowSums(DistanceMatrix matrix) {
+        int n = matrix.size();
+        double[] sums = new double[n];
+        for (int i = 0; i < n; i++) {
+            if (!matrix.isActive(i)) continue;
+            for (int j = 0; j < i; j++) {
+                if (!matrix.isActive(j)) continue;
+                double d = matrix.get(i, j);
+                if (!Double.isFinite(d)) {
+                    throw new IllegalArgumentException("Neighbor-Joining needs finite distances, got " + d
+                            + " between " + matrix.label(i) + " and " + matrix.label(j));
+                }
+                sums[i] += d;
+                sums[j] += d;
+            }
+        }
+        return sums;
+    }
+
+    /** Heap taken by the sorted rows of n taxa: one entry per pair plus an array header per row. */
+    static long rowBytes(int n) {
+        return DistanceMatrix.triangleSize(n) * Long.BYTES + 16L * n;
+    }
+
+    /** Candidate pairs whose Q value was evaluated so far. */
+    long comparisons() {
+        return comparisons;
+    }
+
+    TreeNode run() {
+        int n = matrix.size();
+        for (int i = 0; i < n; i++) {
+            if (!matrix.isActive(i)) continue;
+            // each pair in its younger member's row, as join() leaves them; leaves take the lower IDs
+            long[] row = new long[born[i] == 0 ? i : n];
+            int len = 0;
+            for (int j = 0; j < n; j++) {
+                if (j == i || !matrix.isActive(j)) continue;
+                if (born[j] < born[i] || (born[j] == born[i] && j < i)) row[len++] = entry(matrix.get(i, j), j);
+            }
+            Arrays.sort(row, 0, len);
+            rows[i] = row;
+            rowLen[i] = len;
+        }
+
+        int compactAt = matrix.activeCount() / 2;
+        double[] u = new double[n];
+        while (matrix.activeCount() > 2) {
+            int m = matrix.activeCount();
+            double uMax = Double.NEGATIVE_INFINITY;
+            for (int i = 0; i < n; i++) {
+                if (!matrix.isActive(i)) continue;
+                u[i] = rowSums[i] / (m - 2);
+                uMax = Math.max(uMax, u[i]);
+            }
+
+            double qMin = Double.POSITIVE_INFINITY;
+            int bestI = -1, bestJ = -1;
+            long evaluated = 0;
+            for (int i = 0; i < n; i++) {
+                if (!matrix.isActive(i)) continue;
+                long[] row = rows[i];
+                double ui = u[i];
+                for (int k = 0, len = rowLen[i]; k < len; k++) {
+                    long e = row[k];
+                    float f = distanceOf(e);
+                    // later entries are at least f (minus float rounding) away
+                    if (f - Math.ulp(f) - ui - uMax > qMin) break;
+                    int c = (int) e;
+                    if (!matrix.isActive(c) || born[c] > born[i]) continue;
+                    double q = matrix.get(i, c) - ui - u[c];
+                    evaluated++;
+                    if (q < qMin || bestI < 0) {
+                        qMin = q;
+                        bestI = i;
+                        bestJ = c;
+                    }
+                }
+            }
+            comparisons += evaluated;
+            if (bestI < 0) throw new IllegalStateException("No joinable pair among " + m + " clusters");
+            join(bestI, bestJ, m);
+
+            if (matrix.activeCount() <= compactAt) {
+                compactRows();
+                compactAt = matrix.activeCount() / 2;
+            }
+        }
+
+        int a = -1, b = -1;
+        for (int i = 0; i < n; i++) {
+            if (!matrix.isActive(i)) continue;
+            if (a < 0) a = i; else b = i;
+        }
+        if (b < 0) return nodes[a];
+        double d = Math.max(0.0, matrix.get(a, b));
+        TreeNode root = newNode(a, b, d / 2.0, d / 2.0);
+        if (listener != null) listener.merged(orderedFirst(a, b), orderedFirst(a, b) == a ? b : a, root);
+        return root;
+    }
+
+    private void join(int i, int j, int m) {
+        MergeEvent event = BuildStats.beginMerge();
+        double dij = matrix.get(i, j);
+        double bi = dij / 2.0 + (rowSums[i] - rowSums[j]) / (2.0 * (m - 2));
+        double bj = dij - bi;
+        // negative lengths are moved onto the sibling, keeping bi + bj = d(i,j)
+        if (bi < 0) { bj = dij; bi = 0; }
+        if (bj < 0) { bi = dij; bj = 0; }
+
+        int keep = orderedFirst(i, j);
+        int gone = keep == i ? j : i;
+        TreeNode node = keep == i ? newNode(i, j, bi, bj) : newNode(j, i, bj, bi);
+
+        double newSum = 0;
+        for (int x = 0; x < matrix.size(); x++) {
+            if (x == i || x == j || !matrix.isActive(x)) continue;
+            double dix = matrix.get(i, x);
+            double djx = matrix.get(j, x);
+            double dkx = (dix + djx - dij) / 2.0;
+            rowSums[x] += dkx - dix - djx;
+            newSum += dkx;
+            matrix.set(keep, x, dkx);
+        }
+
+        matrix.deactivate(gone);
+        nodes[keep] = node;
+        nodes[gone] = null;
+        rowSums[keep] = newSum;
+        rowSums[gone] = 0;
+        rows[gone] = null;
+        rowLen[gone] = 0;
+        born[keep] = ++step;
+
+        long[] row = new long[matrix.activeCount() - 1];
+        int len = 0;
+        for (int x = 0; x < matrix.size(); x++) {
+            if (x != keep && matrix.isActive(x)) row[len++] = entry(matrix.get(keep, x), x);
+        }
+        Arrays.sort(row, 0, len);
+        rows[keep] = row;
+        rowLen[keep] = len;
+
+        BuildStats.endMerge(event, keep, gone, matrix.activeCount(), node.height);
+
+        if (listener != null) listener.merged(keep, gone, node);
+    }
+
+    // Children are ordered by display name, as in ClusteringEngine
+    private int orderedFirst(int a, int b) {
+        return TreeNode.compareNames(nodes[a], nodes[b]) <= 0 ? a : b;
+    }
+
+    private TreeNode newNode(int a, int b, double branchA, double branchB) {
+        int first = orderedFirst(a, b);
+        TreeNode left = nodes[first], right = nodes[first == a ? b : a];
+        left.branchLength = first == a ? branchA : branchB;
+        right.branchLength = first == a ? branchB : branchA;
+        TreeNode node = new TreeNode(left, right);
+        node.height = Math.max(left.height + left.branchLength, right.height + right.branchLength);
+        return node;
+    }
+
+    private void compactRows() {
+        for (int i = 0; i < matrix.size(); i++) {
+            if (!matrix.isActive(i)) continue;
+            long[] row = rows[i];
+            int len = 0;
+            for (int k = 0; k < rowLen[i]; k++) {
+                int c = (int) row[k];
+                if (matrix.isActive(c) && born[c] <= born[i]) row[len++] = row[k];
+            }
+            rows[i] = len < row.length / 2 ? Arrays.copyOf(row, len) : row;
+            rowLen[i] = len;
+        }
+    }
+
+    // Float bits made order-preserving as signed ints, so plain long sorting orders by distance
+    private static long entry(double d, int col) {
+        int bits = Float.floatToIntBits((float) d);
+        int sortable = bits ^ ((bits >> 31) & 0x7fffffff);
+        return ((long) sortable << 32) | col;
+    }
+
+    private static float distanceOf(long entry) {
+        int sortable = (int) (entry >> 32);
+        return Float.intBitsToFloat(sortable ^ ((sortable >> 31) & 0x7fffffff));
+    }
+}
@@ -0,0 +1,147 @@
+package io.github.falabdullateef;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Newick import, the inverse of {@link NewickWriter}: leaf labels (optionally single-quoted),
+ * {@code :branchLength}s, and numeric internal labels read as bootstrap support. Nodes with more
+ * than two children are resolved left to right with zero-length edges, since {@link TreeNode} is
+ * binary. Heights are rebuilt from the branch lengths. Iterative, so deep trees are fine.
+ */
+final class NewickReader {
+    private NewickReader() {}
+
+    static TreeNode read(Path path) throws IOException {
+        return parse(Files.readString(path));
+    }
+
+    static TreeNode parse(CharSequence text) {
+        List<List<TreeNode>> open = new ArrayList<>(); // children of each unclosed '('
+        TreeNode last = null; // most recent complete node, still taking a label or length
+        boolean labelled = false;
+        int p = 0;
+        while (true) {
+            p = skipBlanks(text, p);
+            if (p == text.length()) throw error("missing ';'", p);
+            char c = text.charAt(p);
+            if (c == ';') break;
+            switch (c) {
+                case '(':
+                    if (last != null) throw error("unexpected '('", p);
+                    open.add(new ArrayList<>());
+                    p++;
+                    break;
+                case ',':
+                case ')': {
+                    if (last == null || open.isEmpty()) throw error("unexpected '" + c + "'", p);
+                    List<TreeNode> children = open.get(open.size() - 1);
+                    children.add(last);
+                    last = null;
+                    if (c == ')') {
+                        open.remove(open.size() - 1);
+                        last = join(children);
+                        labelled = false;
+                    }
+                    p++;
+                    break;
+                }
+                case ':': {
+                    if (last == null) throw error("branch length without a node", p);
+                    int end = tokenEnd(text, p = skipBlanks(text, p + 1));
+                    try {
+                        last.branchLength = Double.parseDouble(text.subSequence(p, end).toString());
+                    } catch (NumberFormatException e) {
+                        throw error("bad branch length", p);
+                    }
+                    p = end;
+                    break;
+                }
+                default: {
+                    StringBuilder label = new StringBuilder();
+                    p = readLabel(text, p, label);
+                    if (last == null) {
+                        last = new TreeNode(label.toString());
+                    } else if (!last.isLeaf() && !labelled) {
+                        labelled = true;
+                        try {
+                            last.support = Double.parseDouble(label.toString());
+                        } catch (NumberFormatException e) {
+                            // a clade name rather than a support value; internal names are not kept
+                        }
+                    } else {
+                        throw error("unexpected label '" + label + "'", p);
+                    }
+                }
+            }
+        }
+        if (!open.isEmpty()) throw error("unbalanced '('", p);
+        if (last == null) throw error("empty tree", p);
+        last.branchLength = 0;
+        return last;
+    }
+
+    /** Resolves a group of children into binary nodes, (((c0,c1),c2),...), with zero-length inner edges. */
+    private static TreeNode join(List<TreeNode> children) {
+        TreeNode node = children.get(0);
+        for (int k = 1; k < children.size(); k++) {
+            TreeNode child = children.get(k);
+            TreeNode parent = new TreeNode(node, child);
+            parent.height = Math.max(node.height + node.branchLength, child.height + child.branchLength);
+            node = parent;
+        }
+        return node;
+    }
+
+    private static int readLabel(CharSequence text, int p, StringBuilder label) {
+        if (text.charAt(p) != '\'') {
+            int end = tokenEnd(text, p);
+            label.append(text, p, end);
+            return end;
+        }
+        for (int k = p + 1; k < text.length(); k++) {
+            char c = text.charAt(k);
+            if (c != '\'') {
+                label.append(c);
+            } else if (k + 1 < text.length() && text.charAt(k + 1) == '\'') {
+                label.append('\'');
+                k++;
+            } else {
+                return k + 1;
+            }
+        }
+        throw error("unterminated quoted label", p);
+    }
+
+    /** End of an unquoted token: the next blank or Newick punctuation. */
+    private static int tokenEnd(CharSequence text, int p) {
+        while (p < text.length()) {
+            char c = text.charAt(p);
+            if (c <= ' ' || "()[]':;,".indexOf(c) >= 0) break;
+            p++;
+        }
+        return p;
+    }
+
+    /** Skips whitespace and [comments]. */
+    private static int skipBlanks(CharSequence text, int p) {
+        while (p < text.length()) {
+            char c = text.charAt(p);
+            if (c == '[') {
+                while (p < text.length() && text.charAt(p) != ']') p++;
+                if (p == text.length()) throw error("unterminated comment", p);
+            } else if (c > ' ') {
+                break;
+            }
+            p++;
+        }
+        return p;
+    }
+
+    private static IllegalArgumentException error(String message, int offset) {
+        return new IllegalArgumentException("Newick: " + message + " at offset " + offset);
+    }
+}
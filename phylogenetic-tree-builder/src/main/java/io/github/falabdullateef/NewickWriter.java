@@ -0,0 +1,78 @@
+package io.github.falabdullateef;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+
+/**
+ * Newick export, e.g. {@code ((a:1.0,b:1.0):0.5,c:1.5);}. Only leaves are named (internal names are
+ * just the joined leaf labels); internal nodes with bootstrap support carry it, in percent, as their
+ * label: {@code ((a:1.0,b:1.0)87:0.5,c:1.5);}. Iterative post-order walk so arbitrarily deep trees are fine.
+ */
+final class NewickWriter {
+    private NewickWriter() {}
+
+    static void write(TreeNode root, Writer out) throws IOException {
+        if (root == null) {
+            out.write(";\n");
+            return;
+        }
+        // state 0: not entered yet, 1: left subtree written, 2: right subtree written
+        TreeNode[] nodes = new TreeNode[64];
+        byte[] states = new byte[64];
+        nodes[0] = root;
+        int top = 1;
+        while (top > 0) {
+            TreeNode node = nodes[top - 1];
+            boolean leaf = node.isLeaf();
+            TreeNode next = null;
+            if (leaf) {
+                writeLabel(out, node.label);
+            } else if (states[top - 1] == 0) {
+                out.write('(');
+                states[top - 1] = 1;
+                next = node.left != null ? node.left : node.right;
+                if (node.left == null) states[top - 1] = 2;
+            } else if (states[top - 1] == 1 && node.right != null && node.left != null) {
+                out.write(',');
+                states[top - 1] = 2;
+                next = node.right;
+            } else {
+                out.write(')');
+                if (!Double.isNaN(node.support)) out.write(Long.toString(Math.round(node.support)));
+            }
+            if (next != null) {
+                if (top == nodes.length) {
+                    nodes = Arrays.copyOf(nodes, top * 2);
+                    states = Arrays.copyOf(states, top * 2);
+                }
+                nodes[top] = next;
+                states[top++] = 0;
+                continue;
+            }
+            // Node finished: its edge to the parent (none for the root)
+            if (node != root) {
+                out.write(':');
+                out.write(Double.toString(node.branchLength));
+            }
+            nodes[--top] = null;
+        }
+        out.write(";\n");
+    }
+
+    /** Writes a leaf name, single-quoted (with '' escapes) when it contains Newick punctuation or blanks. */
+    private static void writeLabel(Writer out, String name) throws IOException {
+        boolean quote = name.isEmpty();
+        for (int k = 0; k < name.length() && !quote; k++) {
+            char c = name.charAt(k);
+            quote = c <= ' ' || "()[]':;,".indexOf(c) >= 0;
+        }
+        if (!quote) {
+            out.write(name);
+            return;
+        }
+        out.write('\'');
+        out.write(name.replace("'", "''"));
+        out.write('\'');
+    }
+}
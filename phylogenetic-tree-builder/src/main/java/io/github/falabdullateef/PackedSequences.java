@@ -0,0 +1,330 @@
+package io.github.falabdullateef;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Equal-length sequences encoded once into flat {@code long[]} bitsets, one run of {@link #words}
+ * words per sequence.
+ * <ul>
+ *   <li>DNA: 2 bits per site (A=00, C=01, G=10, T=11), 32 sites per word. Any other character
+ *       (gap, N, IUPAC code, lowercase) sets the site's even bit in a parallel mask and is kept
+ *       verbatim in a small sorted per-sequence list, so distances still compare raw characters.</li>
+ *   <li>Binary presence/absence: 1 bit per character, 64 characters per word.</li>
+ * </ul>
+ * Bits past {@link #length} are zero in every sequence, so whole-word XOR never sees padding.
+ */
+final class PackedSequences {
+    static final int DNA_SITES_PER_WORD = 32;
+    static final int BINARY_SITES_PER_WORD = 64;
+
+    final boolean binary;
+    final int count;
+    final int length;
+    final int words;
+    final long[] bits;
+    /** DNA only; null when no sequence has a non-ACGT site. */
+    final long[] masks;
+    private final int[][] oddSites;
+    private final char[][] oddChars;
+
+    private PackedSequences(Builder b) {
+        this.binary = b.binary;
+        this.count = b.count;
+        this.length = b.length;
+        this.words = b.words;
+        this.bits = Arrays.copyOf(b.bits, b.count * b.words);
+        boolean anyOdd = false;
+        for (int[] sites : b.oddSites) anyOdd |= sites.length > 0;
+        this.masks = anyOdd ? Arrays.copyOf(b.masks, b.count * b.words) : null;
+        this.oddSites = b.oddSites.toArray(new int[0][]);
+        this.oddChars = b.oddChars.toArray(new char[0][]);
+    }
+
+    private PackedSequences(boolean binary, int count, int length, int words, long[] bits, long[] masks,
+                            int[][] oddSites, char[][] oddChars) {
+        this.binary = binary;
+        this.count = count;
+        this.length = length;
+        this.words = words;
+        this.bits = bits;
+        this.masks = masks;
+        this.oddSites = oddSites;
+        this.oddChars = oddChars;
+    }
+
+    static PackedSequences dna(List<String> sequences) {
+        Builder b = new Builder(false);
+        for (String s : sequences) b.add(s);
+        return b.build();
+    }
+
+    static PackedSequences binary(List<String> vectors) {
+        Builder b = new Builder(true);
+        for (String v : vectors) b.add(v);
+        return b.build();
+    }
+
+    /** Whether sequence {@code i} has any non-ACGT site (always false for binary data). */
+    boolean hasOddSites(int i) { return oddSites[i].length > 0; }
+
+    /** Number of sites where both sequences hold the same non-ACGT character. */
+    int sharedOddSites(int i, int j) {
+        return (int) sharedOddSites(i, j, null);
+    }
+
+    /**
+     * As {@link #sharedOddSites(int, int)}, but each site counts with the weight of the word it is
+     * packed in (null means 1 everywhere).
+     */
+    long sharedOddSites(int i, int j, int[] wordWeights) {
+        int[] si = oddSites[i], sj = oddSites[j];
+        char[] ci = oddChars[i], cj = oddChars[j];
+        int a = 0, b = 0;
+        long same = 0;
+        while (a < si.length && b < sj.length) {
+            if (si[a] < sj[b]) a++;
+            else if (si[a] > sj[b]) b++;
+            else {
+                if (ci[a] == cj[b]) same += wordWeights == null ? 1 : wordWeights[si[a] / DNA_SITES_PER_WORD];
+                a++;
+                b++;
+            }
+        }
+        return same;
+    }
+
+    /**
+     * Character class of sequence {@code i} at {@code site}: the 2-bit base code (DNA) or the bit
+     * (binary), or {@code 4 + c} for a non-ACGT character {@code c}. Equal values mean equal raw characters.
+     */
+    int siteValue(int i, int site) {
+        int sitesPerWord = binary ? BINARY_SITES_PER_WORD : DNA_SITES_PER_WORD;
+        int word = i * words + site / sitesPerWord;
+        if (binary) return (int) (bits[word] >>> (site % sitesPerWord)) & 1;
+        int shift = 2 * (site % sitesPerWord);
+        if (masks != null && ((masks[word] >>> shift) & 1) != 0) {
+            return 4 + oddChars[i][Arrays.binarySearch(oddSites[i], site)];
+        }
+        return (int) (bits[word] >>> shift) & 3;
+    }
+
+    /** Sorted non-ACGT sites of sequence {@code i} (shared array, do not modify). */
+    int[] oddSites(int i) { return oddSites[i]; }
+
+    /** Characters at {@link #oddSites(int)} (shared array, do not modify). */
+    char[] oddChars(int i) { return oddChars[i]; }
+
+    /** A new encoding holding the given sequences in order. */
+    PackedSequences rows(int[] rows) {
+        long[] newBits = new long[rows.length * words];
+        long[] newMasks = masks == null ? null : new long[rows.length * words];
+        int[][] newSites = new int[rows.length][];
+        char[][] newChars = new char[rows.length][];
+        for (int k = 0; k < rows.length; k++) {
+            int i = rows[k];
+            System.arraycopy(bits, i * words, newBits, k * words, words);
+            if (newMasks != null) System.arraycopy(masks, i * words, newMasks, k * words, words);
+            newSites[k] = oddSites[i];
+            newChars[k] = oddChars[i];
+        }
+        return new PackedSequences(binary, rows.length, length, words, newBits, newMasks, newSites, newChars);
+    }
+
+    /**
+     * A new encoding holding the given source columns in order; {@code -1} entries become padding
+     * sites that match in every sequence. Each source column may appear at most once.
+     */
+    PackedSequences gather(int[] columns) {
+        int wordShift = binary ? 6 : 5; // log2 of the sites per word
+        int siteShift = binary ? 0 : 1; // log2 of the bits per site
+        int inWord = (1 << wordShift) - 1;
+        long siteMask = binary ? 1L : 3L;
+        int newWords = Math.max(1, (columns.length + inWord) >>> wordShift);
+        long[] newBits = new long[count * newWords];
+        long[] newMasks = masks == null ? null : new long[count * newWords];
+        for (int i = 0; i < count; i++) {
+            int src = i * words, dst = i * newWords;
+            for (int k = 0; k < columns.length; k++) {
+                int s = columns[k];
+                if (s < 0) continue;
+                int from = (s & inWord) << siteShift;
+                int to = (k & inWord) << siteShift;
+                newBits[dst + (k >>> wordShift)] |= ((bits[src + (s >>> wordShift)] >>> from) & siteMask) << to;
+                if (newMasks != null) {
+                    newMasks[dst + (k >>> wordShift)] |= ((masks[src + (s >>> wordShift)] >>> from) & 1L) << to;
+                }
+            }
+        }
+
+        int[] target = new int[length];
+        Arrays.fill(target, -1);
+        for (int k = 0; k < columns.length; k++) {
+            if (columns[k] >= 0) target[columns[k]] = k;
+        }
+        int[][] newSites = new int[count][];
+        char[][] newChars = new char[count][];
+        for (int i = 0; i < count; i++) {
+            // (new site, char) pairs packed into longs so one sort restores site order
+            long[] moved = new long[oddSites[i].length];
+            int m = 0;
+            for (int a = 0; a < oddSites[i].length; a++) {
+                int k = target[oddSites[i][a]];
+                if (k >= 0) moved[m++] = (long) k << 16 | oddChars[i][a];
+            }
+            Arrays.sort(moved, 0, m);
+            newSites[i] = new int[m];
+            newChars[i] = new char[m];
+            for (int a = 0; a < m; a++) {
+                newSites[i][a] = (int) (moved[a] >>> 16);
+                newChars[i][a] = (char) moved[a];
+            }
+        }
+        return new PackedSequences(binary, count, columns.length, newWords, newBits, newMasks, newSites, newChars);
+    }
+
+    private static final byte[] DNA_CODES = new byte[128];
+    static {
+        Arrays.fill(DNA_CODES, (byte) -1);
+        DNA_CODES['A'] = 0;
+        DNA_CODES['C'] = 1;
+        DNA_CODES['G'] = 2;
+        DNA_CODES['T'] = 3;
+    }
+
+    /** 2-bit code of an uppercase base, or -1 for anything else. */
+    static int dnaCode(char c) {
+        return c < 128 ? DNA_CODES[c] : -1;
+    }
+
+    /** Appends sequences one character at a time; all sequences must have the same length. */
+    static final class Builder {
+        private final boolean binary;
+        private final int sitesPerWord;
+        private int count;
+        private int length = -1;
+        private int words;
+        private long[] bits = new long[16];
+        private long[] masks;
+        private final List<int[]> oddSites = new ArrayList<>();
+        private final List<char[]> oddChars = new ArrayList<>();
+
+        // state of the sequence being appended
+        private boolean open;
+        private int site;
+        private int limit;
+        private int wordIndex;
+        private long word;
+        private long mask;
+        private int shift;
+        private int[] curSites = new int[8];
+        private char[] curChars = new char[8];
+        private int curOdd;
+
+        Builder(boolean binary) {
+            this.binary = binary;
+            this.sitesPerWord = binary ? BINARY_SITES_PER_WORD : DNA_SITES_PER_WORD;
+            this.masks = binary ? null : new long[16];
+        }
+
+        int count() { return count; }
+
+        void add(CharSequence seq) {
+            begin();
+            for (int k = 0; k < seq.length(); k++) put(seq.charAt(k));
+            end();
+        }
+
+        void begin() {
+            if (open) throw new IllegalStateException("Previous sequence not ended");
+            open = true;
+            site = 0;
+            curOdd = 0;
+            word = 0;
+            mask = 0;
+            shift = 0;
+            if (length >= 0) {
+                limit = length;
+                long start = (long) count * words; // int products overflow on huge alignments
+                ensureCapacity(start + words);
+                wordIndex = (int) start;
+            } else {
+                limit = Integer.MAX_VALUE;
+                wordIndex = 0;
+            }
+        }
+
+        void put(char c) {
+            if (site == limit) {
+                throw new IllegalArgumentException("Sequence " + (count + 1) + " is longer than the first (L=" + length + ")");
+            }
+            if (binary) {
+                if (c == '1') word |= 1L << shift;
+                else if (c != '0') throw new IllegalArgumentException("Binary characters must be 0 or 1, got '" + c + "'");
+                if (++shift == 64) flush();
+            } else {
+                int code = dnaCode(c);
+                if (code >= 0) {
+                    word |= (long) code << shift;
+                } else {
+                    mask |= 1L << shift;
+                    if (curOdd == curSites.length) {
+                        curSites = Arrays.copyOf(curSites, curOdd * 2);
+                        curChars = Arrays.copyOf(curChars, curOdd * 2);
+                    }
+                    curSites[curOdd] = site;
+                    curChars[curOdd] = c;
+                    curOdd++;
+                }
+                if ((shift += 2) == 64) flush();
+            }
+            site++;
+        }
+
+        /** Finish the current sequence; the first one fixes the alignment length. */
+        void end() {
+            if (!open) throw new IllegalStateException("No sequence started");
+            if (length >= 0 && site != length) {
+                throw new IllegalArgumentException("Sequence " + (count + 1) + " has L=" + site + " vs first L=" + length);
+            }
+            if (shift > 0) flush();
+            if (length < 0) {
+                length = site;
+                words = Math.max(1, (length + sitesPerWord - 1) / sitesPerWord);
+                ensureCapacity(words);
+            }
+            oddSites.add(Arrays.copyOf(curSites, curOdd));
+            oddChars.add(Arrays.copyOf(curChars, curOdd));
+            count++;
+            open = false;
+        }
+
+        PackedSequences build() {
+            if (open) throw new IllegalStateException("Last sequence not ended");
+            if (length < 0) {
+                length = 0;
+                words = 1;
+            }
+            return new PackedSequences(this);
+        }
+
+        private void flush() {
+            ensureCapacity(wordIndex + 1);
+            bits[wordIndex] = word;
+            if (!binary) masks[wordIndex] = mask;
+            wordIndex++;
+            word = 0;
+            mask = 0;
+            shift = 0;
+        }
+
+        private void ensureCapacity(long needed) {
+            if (needed <= bits.length) return;
+            if (needed > Integer.MAX_VALUE - 8) throw new IllegalArgumentException("Alignment too large to pack: " + needed + " words");
+            int cap = (int) Math.min(Integer.MAX_VALUE - 8, Math.max(needed, bits.length * 2L));
+            bits = Arrays.copyOf(bits, cap);
+            if (!binary) masks = Arrays.copyOf(masks, cap);
+        }
+    }
+}
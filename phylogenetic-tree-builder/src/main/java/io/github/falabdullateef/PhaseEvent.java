@@ -0,0 +1,20 @@
+package io.github.falabdullateef;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/** Flight Recorder event spanning one pipeline phase (parse, patterns, distances, symmetrize, cluster, bootstrap). */
+@Name("io.github.falabdullateef.Phase")
+@Label("Tree Builder Phase")
+@Category("Phylogenetic Tree Builder")
+@Description("One phase of building a tree")
+final class PhaseEvent extends jdk.jfr.Event {
+    @Label("Phase")
+    String phase;
+
+    @Label("Items")
+    @Description("Records parsed, pairs computed, clusters merged or replicates built, depending on the phase")
+    long items;
+}
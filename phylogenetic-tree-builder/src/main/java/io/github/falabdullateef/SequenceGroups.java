@@ -0,0 +1,150 @@
+package io.github.falabdullateef;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Identical sequences of an alignment, grouped under their first occurrence. Each packed row is
+ * hashed once (bits, non-ACGT mask and characters) and rows with equal hashes are compared word by
+ * word, so grouping is exact and O(n*L).
+ *
+ * <p>Identical sequences are at distance 0 from each other and at the same distance from everything
+ * else, so clustering only the representatives, each UPGMA cluster starting with its multiplicity
+ * as its size, gives the tree the full set would have, up to the order in which the duplicates are
+ * joined. {@link #expand} then hangs the duplicates back on as zero-length leaves.
+ */
+final class SequenceGroups {
+    /** Row of each group's representative (its first member), in input order. */
+    final int[] representatives;
+    /** Members per group. */
+    final int[] multiplicity;
+    /** Group of every row. */
+    final int[] groupOf;
+
+    private SequenceGroups(int[] representatives, int[] multiplicity, int[] groupOf) {
+        this.representatives = representatives;
+        this.multiplicity = multiplicity;
+        this.groupOf = groupOf;
+    }
+
+    static SequenceGroups of(PackedSequences seqs) {
+        int n = seqs.count;
+        int[] groupOf = new int[n];
+        int[] representatives = new int[n];
+        int[] multiplicity = new int[n];
+        int[] nextWithHash = new int[n]; // chains groups whose hashes collide
+        Map<Long, Integer> byHash = new HashMap<>();
+        int groups = 0;
+        for (int i = 0; i < n; i++) {
+            long hash = hash(seqs, i);
+            Integer head = byHash.get(hash);
+            int match = -1;
+            for (int g = head == null ? -1 : head; g >= 0 && match < 0; g = nextWithHash[g]) {
+                if (sameRow(seqs, representatives[g], i)) match = g;
+            }
+            if (match < 0) {
+                match = groups++;
+                representatives[match] = i;
+                nextWithHash[match] = head == null ? -1 : head;
+                byHash.put(hash, match);
+            }
+            groupOf[i] = match;
+            multiplicity[match]++;
+        }
+        return new SequenceGroups(Arrays.copyOf(representatives, groups), Arrays.copyOf(multiplicity, groups), groupOf);
+    }
+
+    int count() { return representatives.length; }
+
+    boolean hasDuplicates() { return representatives.length < groupOf.length; }
+
+    /** The representatives only, under their own names. */
+    Alignment unique(Alignment alignment) {
+        String[] names = new String[representatives.length];
+        for (int g = 0; g < names.length; g++) names[g] = alignment.names[representatives[g]];
+        return new Alignment(names, alignment.sequences.rows(representatives));
+    }
+
+    /**
+     * Replaces each representative leaf of {@code root} (built from {@link #unique}) by all its
+     * group's members, joined at height 0 with zero-length edges in name order. With
+     * {@code supported}, such a group gets 100% support: identical sequences cluster together in
+     * every bootstrap replicate. Returns the (possibly new) root.
+     */
+    TreeNode expand(TreeNode root, String[] names, boolean supported) {
+        List<List<String>> members = new ArrayList<>(representatives.length);
+        for (int g = 0; g < representatives.length; g++) members.add(new ArrayList<>(multiplicity[g]));
+        for (int i = 0; i < groupOf.length; i++) members.get(groupOf[i]).add(names[i]);
+        Map<String, Integer> groupByLabel = new HashMap<>(representatives.length * 2);
+        for (int g = 0; g < representatives.length; g++) {
+            if (multiplicity[g] > 1) groupByLabel.put(names[representatives[g]], g);
+        }
+
+        if (root.isLeaf()) {
+            Integer g = groupByLabel.get(root.label);
+            return g == null ? root : join(members.get(g), 0, supported);
+        }
+        TreeNode[] stack = {root};
+        for (int top = 1; top > 0; ) {
+            TreeNode node = stack[--top];
+            if (top + 2 > stack.length) stack = Arrays.copyOf(stack, stack.length * 2);
+            for (int side = 0; side < 2; side++) {
+                TreeNode child = side == 0 ? node.left : node.right;
+                if (!child.isLeaf()) {
+                    stack[top++] = child;
+                    continue;
+                }
+                Integer g = groupByLabel.get(child.label);
+                if (g == null) continue;
+                TreeNode group = join(members.get(g), child.branchLength, supported);
+                if (side == 0) node.left = group;
+                else node.right = group;
+            }
+        }
+        return root;
+    }
+
+    /** (((a,b),c),...) at height 0 over the sorted labels; the top edge keeps {@code branchLength}. */
+    private static TreeNode join(List<String> labels, double branchLength, boolean supported) {
+        labels.sort(null);
+        TreeNode node = new TreeNode(labels.get(0));
+        for (int k = 1; k < labels.size(); k++) {
+            TreeNode leaf = new TreeNode(labels.get(k));
+            node = TreeNode.compareNames(node, leaf) <= 0 ? new TreeNode(node, leaf) : new TreeNode(leaf, node);
+        }
+        node.branchLength = branchLength;
+        if (supported) node.support = 100;
+        return node;
+    }
+
+    private static long hash(PackedSequences seqs, int i) {
+        long h = 0x9E3779B97F4A7C15L;
+        int row = i * seqs.words;
+        for (int w = 0; w < seqs.words; w++) h = mix(h ^ seqs.bits[row + w]);
+        if (seqs.masks != null && seqs.hasOddSites(i)) {
+            for (int w = 0; w < seqs.words; w++) h = mix(h ^ seqs.masks[row + w]);
+            for (char c : seqs.oddChars(i)) h = mix(h ^ c);
+        }
+        return h;
+    }
+
+    private static boolean sameRow(PackedSequences seqs, int a, int b) {
+        int words = seqs.words;
+        int oa = a * words, ob = b * words;
+        if (!Arrays.equals(seqs.bits, oa, oa + words, seqs.bits, ob, ob + words)) return false;
+        if (seqs.masks == null) return true;
+        // equal masks mean equal odd sites, so comparing the characters finishes the check
+        return Arrays.equals(seqs.masks, oa, oa + words, seqs.masks, ob, ob + words)
+                && Arrays.equals(seqs.oddChars(a), seqs.oddChars(b));
+    }
+
+    /** splitmix64 finalizer. */
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+}
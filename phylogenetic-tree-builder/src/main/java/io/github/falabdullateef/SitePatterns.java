@@ -0,0 +1,169 @@
+package io.github.falabdullateef;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Site-pattern compression. Identical alignment columns contribute identically to every pairwise
+ * Hamming distance, and constant columns contribute nothing, so distances only need each distinct
+ * variable column once, weighted by how often it occurs (see {@link SiteWeights}).
+ *
+ * <p>Constant columns are found word-parallel by comparing every sequence with the first one. The
+ * remaining columns are hashed in one row-major pass (a column's hash is a sum of per-row keys, so
+ * non-ACGT sites can be patched in afterwards), and columns with equal hashes are compared
+ * character by character, so the compression is exact.
+ *
+ * <p>Corrected distances ({@link DistanceMetric}) divide by the number of comparable sites, so for
+ * them constant columns are kept and compressed like the others.
+ */
+final class SitePatterns {
+    /** Per column: the first column with the same pattern, or -1 if the column is constant and dropped. */
+    final int[] representative;
+    /** Number of distinct columns kept. */
+    final int count;
+
+    private SitePatterns(int[] representative, int count) {
+        this.representative = representative;
+        this.count = count;
+    }
+
+    static SitePatterns of(PackedSequences seqs) {
+        return of(seqs, false);
+    }
+
+    static SitePatterns of(PackedSequences seqs, boolean keepConstant) {
+        int[] variable = keepConstant ? allSites(seqs.length) : variableSites(seqs);
+        int v = variable.length;
+        int[] slot = new int[seqs.length]; // site -> index into variable, or -1
+        Arrays.fill(slot, -1);
+        for (int k = 0; k < v; k++) slot[variable[k]] = k;
+
+        int wordShift = seqs.binary ? 6 : 5; // log2 of the sites per word
+        int siteShift = seqs.binary ? 0 : 1; // log2 of the bits per site
+        int inWord = (1 << wordShift) - 1;
+        long siteMask = seqs.binary ? 1L : 3L;
+        long[] hashes = new long[v];
+        long[] rowKeys = new long[4];
+        for (int i = 0; i < seqs.count; i++) {
+            for (int code = 0; code < 4; code++) rowKeys[code] = key(i, code);
+            int row = i * seqs.words;
+            for (int k = 0; k < v; k++) {
+                int site = variable[k];
+                long word = seqs.bits[row + (site >>> wordShift)];
+                hashes[k] += rowKeys[(int) (word >>> ((site & inWord) << siteShift) & siteMask)];
+            }
+            // non-ACGT sites were counted as code 0 above
+            int[] odd = seqs.oddSites(i);
+            char[] chars = seqs.oddChars(i);
+            for (int a = 0; a < odd.length; a++) {
+                int k = slot[odd[a]];
+                if (k >= 0) hashes[k] += key(i, 4 + chars[a]) - rowKeys[0];
+            }
+        }
+
+        int[] representative = new int[seqs.length];
+        Arrays.fill(representative, -1);
+        int[] nextWithHash = new int[v]; // chains representatives whose hashes collide
+        Map<Long, Integer> byHash = new HashMap<>();
+        int count = 0;
+        for (int k = 0; k < v; k++) {
+            int s = variable[k];
+            Integer head = byHash.get(hashes[k]);
+            int match = -1;
+            for (int r = head == null ? -1 : head; r >= 0 && match < 0; r = nextWithHash[r]) {
+                if (sameColumn(seqs, variable[r], s)) match = variable[r];
+            }
+            if (match >= 0) {
+                representative[s] = match;
+            } else {
+                representative[s] = s;
+                nextWithHash[k] = head == null ? -1 : head;
+                byHash.put(hashes[k], k);
+                count++;
+            }
+        }
+        return new SitePatterns(representative, count);
+    }
+
+    /** Multiplicity of each pattern on its representative column, 0 elsewhere. */
+    int[] weights() {
+        int[] weights = new int[representative.length];
+        for (int rep : representative) {
+            if (rep >= 0) weights[rep]++;
+        }
+        return weights;
+    }
+
+    /** Per-column counts (e.g. bootstrap draws) summed onto each pattern's representative column. */
+    int[] fold(int[] columnCounts) {
+        int[] weights = new int[representative.length];
+        for (int s = 0; s < columnCounts.length; s++) {
+            if (representative[s] >= 0) weights[representative[s]] += columnCounts[s];
+        }
+        return weights;
+    }
+
+    private static int[] allSites(int length) {
+        int[] sites = new int[length];
+        for (int s = 0; s < length; s++) sites[s] = s;
+        return sites;
+    }
+
+    /** Sites where some sequence differs from the first, in order. */
+    private static int[] variableSites(PackedSequences seqs) {
+        int words = seqs.words;
+        long[] bits = seqs.bits, masks = seqs.masks;
+        long[] differs = new long[words];
+        for (int i = 1; i < seqs.count; i++) {
+            int row = i * words;
+            for (int w = 0; w < words; w++) {
+                long x = bits[w] ^ bits[row + w];
+                if (seqs.binary) {
+                    differs[w] |= x;
+                } else {
+                    // a non-ACGT site on either side may still match; those are checked below
+                    differs[w] |= ((x | (x >>> 1)) & 0x5555555555555555L)
+                            | (masks == null ? 0 : masks[w] | masks[row + w]);
+                }
+            }
+        }
+        int sitesPerWord = seqs.binary ? PackedSequences.BINARY_SITES_PER_WORD : PackedSequences.DNA_SITES_PER_WORD;
+        int bitsPerSite = seqs.binary ? 1 : 2;
+        int[] sites = new int[seqs.length];
+        int n = 0;
+        for (int s = 0; s < seqs.length; s++) {
+            int w = s / sitesPerWord, shift = (s % sitesPerWord) * bitsPerSite;
+            if ((differs[w] >>> shift & 1) == 0) continue;
+            if (masks != null && (masks[w] >>> shift & 1) != 0
+                    && isConstant(seqs, s)) {
+                continue; // e.g. a column of gaps in every sequence
+            }
+            sites[n++] = s;
+        }
+        return Arrays.copyOf(sites, n);
+    }
+
+    private static boolean isConstant(PackedSequences seqs, int site) {
+        int first = seqs.siteValue(0, site);
+        for (int i = 1; i < seqs.count; i++) {
+            if (seqs.siteValue(i, site) != first) return false;
+        }
+        return true;
+    }
+
+    private static boolean sameColumn(PackedSequences seqs, int a, int b) {
+        for (int i = 0; i < seqs.count; i++) {
+            if (seqs.siteValue(i, a) != seqs.siteValue(i, b)) return false;
+        }
+        return true;
+    }
+
+    /** Per (row, value) key; a column hashes to the sum of its rows' keys. */
+    private static long key(int row, int value) {
+        long z = ((long) row << 20 | value) * 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+}
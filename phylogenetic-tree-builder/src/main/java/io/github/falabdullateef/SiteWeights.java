@@ -0,0 +1,82 @@
+package io.github.falabdullateef;
+
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+/**
+ * An alignment with integer column weights, laid out so a weighted Hamming distance stays a plain
+ * XOR + popcount loop. Columns of equal weight are gathered into word-aligned groups of a compact
+ * copy of the packed encoding (zero-weight columns are left out), so the distance is
+ * sum over groups of weight * popcount(diff over the group's words): one multiply per group.
+ *
+ * <p>The copy holds only the drawn columns, at most the source's size per replicate. For a bootstrap
+ * replicate about a third of the columns are never drawn, so the copy is smaller and the weighted
+ * kernel touches fewer words than the unweighted one.
+ */
+final class SiteWeights {
+    /** Columns with nonzero weight, grouped by weight, each group starting on a word boundary. */
+    final PackedSequences packed;
+    /** Group g covers words {@code [groupEnds[g-1], groupEnds[g])} of each packed sequence. */
+    final int[] groupEnds;
+    final int[] groupWeights;
+    /** Weight of every word of {@link #packed}, for per-site lookups. */
+    final int[] wordWeights;
+    /** Sum of all column weights: the length of the weighted alignment. */
+    final long totalWeight;
+
+    private SiteWeights(PackedSequences packed, int[] groupEnds, int[] groupWeights, long totalWeight) {
+        this.packed = packed;
+        this.totalWeight = totalWeight;
+        this.groupEnds = groupEnds;
+        this.groupWeights = groupWeights;
+        this.wordWeights = new int[packed.words];
+        for (int g = 0, w = 0; g < groupEnds.length; g++) {
+            for (; w < groupEnds[g]; w++) wordWeights[w] = groupWeights[g];
+        }
+    }
+
+    static SiteWeights of(PackedSequences seqs, int[] weights) {
+        if (weights.length != seqs.length) {
+            throw new IllegalArgumentException(weights.length + " weights for " + seqs.length + " sites");
+        }
+        int sitesPerWord = seqs.binary ? PackedSequences.BINARY_SITES_PER_WORD : PackedSequences.DNA_SITES_PER_WORD;
+        // (weight, column) in one long each, so a single sort groups the columns by weight
+        long[] order = new long[weights.length];
+        int kept = 0;
+        long total = 0;
+        for (int s = 0; s < weights.length; s++) {
+            if (weights[s] < 0) throw new IllegalArgumentException("Negative site weight: " + weights[s]);
+            if (weights[s] > 0) order[kept++] = (long) weights[s] << 32 | s;
+            total += weights[s];
+        }
+        Arrays.sort(order, 0, kept);
+
+        int groups = 0;
+        for (int a = 0; a < kept; a++) {
+            if (a == 0 || order[a] >>> 32 != order[a - 1] >>> 32) groups++;
+        }
+        int[] columns = new int[kept + sitesPerWord * groups];
+        int[] groupEnds = new int[groups];
+        int[] groupWeights = new int[groups];
+        int k = 0;
+        for (int a = 0, g = 0; a < kept; g++) {
+            int weight = (int) (order[a] >>> 32);
+            while (a < kept && (int) (order[a] >>> 32) == weight) columns[k++] = (int) order[a++];
+            while (k % sitesPerWord != 0) columns[k++] = -1;
+            groupEnds[g] = k / sitesPerWord;
+            groupWeights[g] = weight;
+        }
+        return new SiteWeights(seqs.gather(Arrays.copyOf(columns, k)), groupEnds, groupWeights, total);
+    }
+
+    /**
+     * One bootstrap replicate: {@code length} columns drawn with replacement, each weighted by how
+     * many times it was drawn. With {@code patterns} (may be null) the draws are folded onto each
+     * pattern's representative column, so only distinct variable columns are gathered.
+     */
+    static SiteWeights resample(PackedSequences seqs, SitePatterns patterns, SplittableRandom random) {
+        int[] counts = new int[seqs.length];
+        for (int k = 0; k < seqs.length; k++) counts[random.nextInt(seqs.length)]++;
+        return of(seqs, patterns == null ? counts : patterns.fold(counts));
+    }
+}
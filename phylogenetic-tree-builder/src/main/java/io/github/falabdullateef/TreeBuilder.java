@@ -0,0 +1,525 @@
+package io.github.falabdullateef;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Reusable pipeline from an alignment or a distance matrix to a tree. Configure once, then share:
+ * {@link #build} and {@link #cluster} keep all working state local to the call, so one instance
+ * can run many builds back to back or concurrently.
+ */
+final class TreeBuilder {
+    private ClusterMethod method = ClusterMethod.UPGMA;
+    private DistanceMetric metric = DistanceMetric.HAMMING;
+    private int threads = Integer.getInteger("phylo.threads", Runtime.getRuntime().availableProcessors());
+    private PrintStream trace; // when set, print the matrix initially and after each merge
+    private MatrixBackend backend = MatrixBackend.AUTO;
+    private Path matrixDir = Paths.get(System.getProperty("java.io.tmpdir"));
+    private int replicates; // bootstrap replicates, 0 = no support values
+    private long seed;
+    private boolean compressPatterns = true;
+    private boolean dedup;
+    private MatrixCache cache; // null = always compute distances
+    private Path mergeLog; // null = no merge log
+    private Path checkpoint; // null = no checkpoints
+    private long checkpointNanos;
+    private boolean resume;
+
+    TreeBuilder method(ClusterMethod method) {
+        this.method = method;
+        return this;
+    }
+
+    /** Distance between sequences; the corrected ones need DNA. */
+    TreeBuilder metric(DistanceMetric metric) {
+        this.metric = metric;
+        return this;
+    }
+
+    /** Threads for distances, bootstrap replicates and BGZF input. */
+    int threads() {
+        return threads;
+    }
+
+    TreeBuilder threads(int threads) {
+        if (threads < 1) throw new IllegalArgumentException("threads must be >= 1, got " + threads);
+        this.threads = threads;
+        return this;
+    }
+
+    TreeBuilder trace(PrintStream trace) {
+        this.trace = trace;
+        return this;
+    }
+
+    /** Storage for distance matrices; memory-mapped files are created under {@code matrixDir}. */
+    TreeBuilder matrixBackend(MatrixBackend backend, Path matrixDir) {
+        this.backend = backend;
+        if (matrixDir != null) this.matrixDir = matrixDir;
+        return this;
+    }
+
+    /**
+     * Annotate built trees with bootstrap support from {@code replicates} column resamplings (0 turns
+     * it off). Replicates run in parallel on the configured threads, each holding its own matrix.
+     */
+    TreeBuilder bootstrap(int replicates, long seed) {
+        if (replicates < 0) throw new IllegalArgumentException("replicates must be >= 0, got " + replicates);
+        this.replicates = replicates;
+        this.seed = seed;
+        return this;
+    }
+
+    /**
+     * Collapse identical columns and drop constant ones before computing distances (on by
+     * default). Distances are unchanged; only the work per pair shrinks.
+     */
+    TreeBuilder compressPatterns(boolean compressPatterns) {
+        this.compressPatterns = compressPatterns;
+        return this;
+    }
+
+    /**
+     * Cluster each set of identical sequences once, under its first member, and re-attach the
+     * others as zero-length leaves afterwards (off by default). UPGMA weighs each representative by
+     * its group size, so the tree is the same up to how the duplicates are joined.
+     */
+    TreeBuilder dedup(boolean dedup) {
+        this.dedup = dedup;
+        return this;
+    }
+
+    /**
+     * Keep computed distance matrices under {@code dir} (null turns caching off), evicting the
+     * least recently used ones beyond {@code maxBytes}. A build whose sequences and metric were
+     * seen before maps the stored matrix instead of computing it.
+     */
+    TreeBuilder cache(Path dir, long maxBytes) {
+        this.cache = dir == null ? null : new MatrixCache(dir, maxBytes);
+        return this;
+    }
+
+    /**
+     * Stream every merge of the clustering to {@code file} as a {@link MergeLog} (null turns it
+     * off). Bootstrap replicates are not logged. With it, {@link #replay} reproduces the per-merge
+     * matrix view of {@link #trace} offline.
+     */
+    TreeBuilder mergeLog(Path file) {
+        this.mergeLog = file;
+        return this;
+    }
+
+    /**
+     * Save a {@link Checkpoint} of the clustering to {@code file} at most every {@code intervalMillis}
+     * (null turns it off; needs a {@link #mergeLog}). With {@code resume}, a build that finds a
+     * checkpoint there continues from it instead of computing distances and clustering from the
+     * start. The checkpoint is deleted once the tree is done.
+     */
+    TreeBuilder checkpoints(Path file, long intervalMillis, boolean resume) {
+        if (intervalMillis < 0) throw new IllegalArgumentException("Checkpoint interval must be >= 0, got " + intervalMillis);
+        this.checkpoint = file;
+        this.checkpointNanos = intervalMillis * 1_000_000L;
+        this.resume = resume;
+        return this;
+    }
+
+    /** A builder with the same settings, to adjust for one job without touching this one. */
+    TreeBuilder copy() {
+        TreeBuilder copy = new TreeBuilder();
+        copy.method = method;
+        copy.metric = metric;
+        copy.threads = threads;
+        copy.trace = trace;
+        copy.backend = backend;
+        copy.matrixDir = matrixDir;
+        copy.replicates = replicates;
+        copy.seed = seed;
+        copy.compressPatterns = compressPatterns;
+        copy.dedup = dedup;
+        copy.cache = cache;
+        copy.mergeLog = mergeLog;
+        copy.checkpoint = checkpoint;
+        copy.checkpointNanos = checkpointNanos;
+        copy.resume = resume;
+        return copy;
+    }
+
+    TreeNode build(Alignment alignment) throws IOException {
+        return build(alignment, null);
+    }
+
+    /** As {@link #build(Alignment)}, recording phase timings and counters into {@code stats} (may be null). */
+    TreeNode build(Alignment alignment, BuildStats stats) throws IOException {
+        if (!dedup) return build(alignment, null, stats);
+        SequenceGroups groups;
+        try (BuildStats.Timer timer = BuildStats.time(stats, BuildStats.Phase.DEDUP)) {
+            groups = SequenceGroups.of(alignment.sequences);
+            timer.items(groups.count());
+        }
+        if (!groups.hasDuplicates()) return build(alignment, null, stats);
+        TreeNode root = build(groups.unique(alignment), groups.multiplicity, stats);
+        if (stats != null) {
+            stats.taxa = alignment.size();
+            stats.uniqueTaxa = groups.count();
+        }
+        return groups.expand(root, alignment.names, replicates > 0 && groups.count() > 2);
+    }
+
+    /** Builds from {@code alignment} whose taxa stand for {@code sizes} sequences each (null = 1). */
+    private TreeNode build(Alignment alignment, int[] sizes, BuildStats stats) throws IOException {
+        SitePatterns patterns = null;
+        String key = checkpoint != null ? MatrixCache.key(alignment, metric.cacheKey(alignment.sequences.binary)) : null;
+        Checkpoint saved = restore(key, alignment.names);
+        DistanceMatrix cached = null;
+        if (cache != null && saved == null) {
+            try (BuildStats.Timer timer = BuildStats.time(stats, BuildStats.Phase.CACHE)) {
+                if (key == null) key = MatrixCache.key(alignment, metric.cacheKey(alignment.sequences.binary));
+                cached = cache.load(key, alignment.names, this);
+                if (cached != null) timer.items(DistanceMatrix.triangleSize(cached.size()));
+            }
+            if (stats != null) stats.matrixCache = cached != null ? "hit" : "miss";
+        }
+        DistanceMatrix loaded = saved != null ? saved.matrix : cached;
+        if (loaded != null && stats != null) {
+            stats.taxa = alignment.size();
+            stats.sites = alignment.sequences.length;
+            stats.matrixBackend = "mmap";
+            stats.matrixAllocated(loaded);
+        }
+        TreeNode root;
+        if (loaded == null) {
+            patterns = patterns(alignment, stats);
+        }
+        try (DistanceMatrix matrix = loaded != null ? loaded : distances(alignment, patterns, stats)) {
+            if (loaded == null && cache != null) {
+                try (BuildStats.Timer timer = BuildStats.time(stats, BuildStats.Phase.CACHE)) {
+                    cache.store(key, matrix);
+                    timer.items(DistanceMatrix.triangleSize(matrix.size()));
+                }
+            }
+            root = cluster(matrix, sizes, saved, key, stats);
+        }
+        if (replicates > 0 && alignment.size() > 2) {
+            if (loaded != null) patterns = patterns(alignment, stats);
+            try (BuildStats.Timer timer = BuildStats.time(stats, BuildStats.Phase.BOOTSTRAP)) {
+                Bootstrap.annotate(root, alignment, patterns, replicates, seed, threads, method == ClusterMethod.NJ,
+                        weights -> {
+                            try (DistanceMatrix matrix = newMatrix(alignment.names)) {
+                                DistanceMatrixBuilder.fillSequential(matrix, kernel(alignment.sequences, weights));
+                                return cluster(matrix, sizes, null, null);
+                            }
+                        });
+                timer.items(replicates);
+            }
+        }
+        return root;
+    }
+
+    /**
+     * Adds every taxon of {@code alignment} that is not yet a leaf of {@code root} (a tree built
+     * earlier with this method, e.g. read back with {@link NewickReader}) without reclustering:
+     * each costs only its distances to the current leaves. Returns the new root.
+     */
+    TreeNode place(TreeNode root, Alignment alignment, BuildStats stats) {
+        try (BuildStats.Timer timer = BuildStats.time(stats, BuildStats.Phase.PLACE)) {
+            TreePlacer placer = new TreePlacer(alignment, kernel(alignment.sequences, null), method != ClusterMethod.NJ);
+            TreeNode placed = placer.placeMissing(root);
+            timer.items(placer.pairs());
+            if (stats != null) {
+                stats.method = method.name();
+                stats.distancePairs += placer.pairs();
+            }
+            return placed;
+        }
+    }
+
+    /** Tree from approximate (Mash) distances between sketched, possibly unaligned sequences. */
+    TreeNode build(MinHashSketches sketches, BuildStats stats) throws IOException {
+        try (DistanceMatrix matrix = distances(sketches, stats)) {
+            return cluster(matrix, stats);
+        }
+    }
+
+    DistanceMatrix distances(MinHashSketches sketches, BuildStats stats) throws IOException {
+        DistanceMatrix matrix = newMatrix(sketches.names);
+        long pairs = DistanceMatrix.triangleSize(matrix.size());
+        try (BuildStats.Timer timer = BuildStats.time(stats, BuildStats.Phase.DISTANCES)) {
+            // a sketch is about as much memory per taxon as `size` packed words
+            DistanceMatrixBuilder.fill(matrix, (i, j) -> DistanceCalculators.mash(sketches, i, j),
+                    DistanceMatrixBuilder.tileSize(sketches.size), threads);
+            timer.items(pairs);
+        }
+        if (stats != null) {
+            stats.distancePairs += pairs;
+            stats.matrixBackend = matrix instanceof MappedDistanceMatrix ? "mmap" : "heap";
+            stats.matrixAllocated(matrix);
+        }
+        return matrix;
+    }
+
+    /**
+     * Rough peak heap of a build over {@code taxa} taxa whose parsed input takes {@code inputBytes}:
+     * the matrix unless it goes to a mapped file, NJ's sorted rows (on the heap either way), as much
+     * again per concurrent bootstrap replicate, and about one more copy of the input for site
+     * patterns plus one per concurrent replicate for its gathered columns ({@link SiteWeights}).
+     */
+    long estimateBytes(int taxa, long inputBytes) {
+        long matrix = backend.resolve(taxa, method) == MatrixBackend.MMAP ? 0 : DistanceMatrix.triangleSize(taxa) * Double.BYTES;
+        if (method == ClusterMethod.NJ) matrix += NeighborJoiningEngine.rowBytes(taxa);
+        int matrices = 1 + (replicates > 0 ? Math.min(threads, replicates) : 0);
+        return matrix * matrices + (1 + matrices) * inputBytes;
+    }
+
+    /** Empty matrix on the configured backend; the caller closes it. */
+    DistanceMatrix newMatrix(String[] labels) throws IOException {
+        if (backend.resolve(labels.length, method) == MatrixBackend.MMAP) {
+            return MappedDistanceMatrix.temporary(labels, matrixDir);
+        }
+        return new HeapDistanceMatrix(labels);
+    }
+
+    /**
+     * The packed triangle {@code offset} bytes into {@code file} as a matrix that clustering may
+     * update without touching the file; the caller closes it. A copy-on-write mapping keeps every
+     * written page in anonymous memory, so it is used only for matrices that fit the heap anyway;
+     * one bound for a mapped file is first copied to a temporary file under the matrix directory.
+     */
+    DistanceMatrix mapCopy(String[] labels, Path file, long offset) throws IOException {
+        if (backend.resolve(labels.length, method) == MatrixBackend.MMAP) {
+            return MappedDistanceMatrix.copyOf(labels, file, offset, matrixDir);
+        }
+        return new MappedDistanceMatrix(labels, file, offset, FileChannel.MapMode.PRIVATE, false);
+    }
+
+    /** Pairwise distances of the configured metric (Hamming on DNA or binary data by default). */
+    DistanceMatrix distances(Alignment alignment) throws IOException {
+        return distances(alignment, null);
+    }
+
+    DistanceMatrix distances(Alignment alignment, BuildStats stats) throws IOException {
+        return distances(alignment, patterns(alignment, stats), stats);
+    }
+
+    private SitePatterns patterns(Alignment alignment, BuildStats stats) {
+        if (!compressPatterns) return null;
+        try (BuildStats.Timer timer = BuildStats.time(stats, BuildStats.Phase.PATTERNS)) {
+            SitePatterns patterns = SitePatterns.of(alignment.sequences, metric != DistanceMetric.HAMMING);
+            timer.items(patterns.count);
+            return patterns;
+        }
+    }
+
+    private DistanceMatrix distances(Alignment alignment, SitePatterns patterns, BuildStats stats) throws IOException {
+        PackedSequences seqs = alignment.sequences;
+        DistanceMatrix matrix = newMatrix(alignment.names);
+        long pairs = DistanceMatrix.triangleSize(matrix.size());
+        // compressing is only worth a second copy of the sequences when it drops over 10% of the columns
+        boolean compressed = patterns != null && patterns.count < 0.9 * seqs.length;
+        try (BuildStats.Timer timer = BuildStats.time(stats, BuildStats.Phase.DISTANCES)) {
+            SiteWeights weights = compressed ? SiteWeights.of(seqs, patterns.weights()) : null;
+            int words = weights != null ? weights.packed.words : seqs.words;
+            DistanceMatrixBuilder.fill(matrix, kernel(seqs, weights), DistanceMatrixBuilder.tileSize(words), threads);
+            timer.items(pairs);
+        }
+        if (stats != null) {
+            stats.taxa = alignment.size();
+            stats.sites = seqs.length;
+            stats.distancePairs += pairs;
+            stats.sitePatterns = compressed ? patterns.count : seqs.length;
+            stats.matrixBackend = matrix instanceof MappedDistanceMatrix ? "mmap" : "heap";
+            stats.matrixAllocated(matrix);
+        }
+        return matrix;
+    }
+
+    /** Kernel of the configured metric for the encoding, optionally with per-site weights (null = unweighted). */
+    private DistanceMatrixBuilder.PairKernel kernel(PackedSequences seqs, SiteWeights weights) {
+        if (metric != DistanceMetric.HAMMING) {
+            if (seqs.binary) throw new IllegalArgumentException("The " + metric.key + " distance needs DNA sequences");
+            DistanceMetric m = metric;
+            return weights != null
+                    ? (i, j) -> DistanceCalculators.substitutions(weights, i, j, m)
+                    : (i, j) -> DistanceCalculators.substitutions(seqs, i, j, m);
+        }
+        if (weights != null) {
+            return seqs.binary
+                    ? (i, j) -> DistanceCalculators.hammingBinary(weights, i, j)
+                    : (i, j) -> DistanceCalculators.hammingDNA(weights, i, j);
+        }
+        return seqs.binary
+                ? (i, j) -> DistanceCalculators.hammingBinary(seqs, i, j)
+                : (i, j) -> DistanceCalculators.hammingDNA(seqs, i, j);
+    }
+
+    /** Cluster the matrix down to one tree. The matrix is consumed (updated in place). */
+    TreeNode cluster(DistanceMatrix matrix) throws IOException {
+        return cluster(matrix, null);
+    }
+
+    TreeNode cluster(DistanceMatrix matrix, BuildStats stats) throws IOException {
+        // A matrix given as input is only known by its contents
+        String key = checkpoint != null ? MatrixCache.key(matrix) : null;
+        Checkpoint saved = restore(key, matrix.labels());
+        if (saved == null) return cluster(matrix, null, null, key, stats);
+        try (DistanceMatrix restored = saved.matrix) {
+            return cluster(restored, null, saved, key, stats);
+        }
+    }
+
+    /** The checkpoint to resume from, or null when not resuming or there is none yet. */
+    private Checkpoint restore(String key, String[] labels) throws IOException {
+        if (checkpoint == null || !resume) return null;
+        return Checkpoint.load(checkpoint, key, method, labels, this);
+    }
+
+    /**
+     * Clusters the main tree, with the configured merge log and checkpoints: from the start, or
+     * from {@code saved} (whose matrix is {@code matrix}). {@code key} identifies the input for the
+     * checkpoints.
+     */
+    private TreeNode cluster(DistanceMatrix matrix, int[] initialSizes, Checkpoint saved, String key, BuildStats stats)
+            throws IOException {
+        if (mergeLog == null) {
+            if (checkpoint != null) throw new IllegalArgumentException("Checkpoints need a merge log");
+            return cluster(matrix, initialSizes, stats, trace);
+        }
+        TreeNode[] nodes = leaves(matrix);
+        int[] sizes = saved != null ? saved.sizes.clone() : initialSizes(matrix.size(), initialSizes);
+        // NJ's engine state goes into the checkpoints too
+        double[] rowSums = method != ClusterMethod.NJ ? null
+                : saved != null ? saved.rowSums : NeighborJoiningEngine.rowSums(matrix);
+        int[] born = method != ClusterMethod.NJ ? null : saved != null ? saved.born : new int[nodes.length];
+        String[] labels = matrix.labels();
+        if (saved != null) MergeLog.readForest(mergeLog, method, labels, nodes, saved.merges);
+        TreeNode root;
+        try (MergeLog log = saved != null ? MergeLog.resume(mergeLog, saved.merges) : MergeLog.create(mergeLog, method, labels)) {
+            int[] clusterSizes = sizes.clone(); // logged sizes; the engines keep their own
+            ClusteringEngine.MergeListener traced = tracer(matrix, nodes, trace, saved != null ? saved.merges : 0);
+            long[] lastCheckpoint = {System.nanoTime()};
+            ClusteringEngine.MergeListener listener = (kept, removed, node) -> {
+                clusterSizes[kept] += clusterSizes[removed];
+                clusterSizes[removed] = 0;
+                try {
+                    log.write(kept, removed, clusterSizes[kept], node);
+                    // a checkpoint for the last join would leave nothing to resume
+                    if (checkpoint != null && matrix.activeCount() > 2 && System.nanoTime() - lastCheckpoint[0] >= checkpointNanos) {
+                        log.sync();
+                        Checkpoint.write(checkpoint, key, method, matrix, clusterSizes, rowSums, born, log.records());
+                        lastCheckpoint[0] = System.nanoTime();
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                if (traced != null) traced.merged(kept, removed, node);
+            };
+            try {
+                root = run(matrix, nodes, sizes, rowSums, born, stats, listener);
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        }
+        if (checkpoint != null) Files.deleteIfExists(checkpoint);
+        return root;
+    }
+
+    /** {@code initialSizes}: sequences each taxon stands for, UPGMA's starting cluster sizes (null = 1 each; not modified). */
+    private TreeNode cluster(DistanceMatrix matrix, int[] initialSizes, BuildStats stats, PrintStream trace) {
+        TreeNode[] nodes = leaves(matrix);
+        return run(matrix, nodes, initialSizes(nodes.length, initialSizes), null, null, stats, tracer(matrix, nodes, trace, 0));
+    }
+
+    /**
+     * Replays the merge log of an earlier build of {@code alignment} with the same settings,
+     * printing the matrix initially and after each merge exactly as {@link #trace} would have.
+     */
+    void replay(Alignment alignment, Path log, PrintStream out) throws IOException {
+        int[] sizes = null;
+        if (dedup) {
+            SequenceGroups groups = SequenceGroups.of(alignment.sequences);
+            if (groups.hasDuplicates()) {
+                alignment = groups.unique(alignment);
+                sizes = groups.multiplicity;
+            }
+        }
+        try (DistanceMatrix matrix = distances(alignment, null)) {
+            replay(matrix, sizes, log, out);
+        }
+    }
+
+    /** As {@link #replay(Alignment, Path, PrintStream)} for a run on a distance matrix; the matrix is consumed. */
+    void replay(DistanceMatrix matrix, Path log, PrintStream out) throws IOException {
+        replay(matrix, null, log, out);
+    }
+
+    private void replay(DistanceMatrix matrix, int[] initialSizes, Path log, PrintStream out) throws IOException {
+        TreeNode[] nodes = leaves(matrix);
+        int[] sizes = initialSizes(nodes.length, initialSizes);
+        String[] labels = matrix.labels();
+        MergeLog.readForest(log, method, labels, nodes.clone(), 0); // rejects a log of another run before printing
+        MergeLog.replay(log, method, matrix, nodes, sizes, tracer(matrix, nodes, out, 0));
+    }
+
+    private static TreeNode[] leaves(DistanceMatrix matrix) {
+        int n = matrix.size();
+        if (n == 0) throw new IllegalArgumentException("Nothing to cluster");
+        TreeNode[] nodes = new TreeNode[n];
+        for (int i = 0; i < n; i++) nodes[i] = new TreeNode(matrix.label(i));
+        return nodes;
+    }
+
+    private static int[] initialSizes(int n, int[] initialSizes) {
+        int[] sizes = new int[n];
+        for (int i = 0; i < n; i++) sizes[i] = initialSizes != null ? initialSizes[i] : 1;
+        return sizes;
+    }
+
+    /** Prints the matrix now and returns a listener printing it after each merge; null without {@code trace}. */
+    private static ClusteringEngine.MergeListener tracer(DistanceMatrix matrix, TreeNode[] nodes, PrintStream trace, long merges) {
+        if (trace == null) return null;
+        trace.println(merges == 0 ? "Initial distance matrix:" : "Distance matrix after " + merges + " merges (resumed):");
+        MatrixPrinter.printUpperTriangle(matrix, nodes, trace);
+        trace.println("--------");
+        return (kept, removed, node) -> {
+            trace.println("\nMerged: " + node.left.name() + " + " + node.right.name() + " -> " + node.name());
+            MatrixPrinter.printUpperTriangle(matrix, nodes, trace);
+            trace.println("--------");
+        };
+    }
+
+    /**
+     * Clusters the active part of {@code matrix}, whose clusters are {@code nodes} of {@code sizes}
+     * sequences; NJ starts from {@code rowSums} and {@code born} when given.
+     */
+    private TreeNode run(DistanceMatrix matrix, TreeNode[] nodes, int[] sizes, double[] rowSums, int[] born, BuildStats stats,
+                         ClusteringEngine.MergeListener listener) {
+        int merges = matrix.activeCount() - 1;
+        try (BuildStats.Timer timer = BuildStats.time(stats, BuildStats.Phase.CLUSTER)) {
+            TreeNode root;
+            long comparisons;
+            if (method == ClusterMethod.NJ) {
+                NeighborJoiningEngine engine = (rowSums != null ? new NeighborJoiningEngine(matrix, nodes, rowSums, born)
+                        : new NeighborJoiningEngine(matrix, nodes)).onMerge(listener);
+                root = engine.run();
+                comparisons = engine.comparisons();
+            } else {
+                ClusteringEngine engine = new ClusteringEngine(matrix, nodes, sizes, method == ClusterMethod.UPGMA)
+                        .onMerge(listener);
+                root = engine.run();
+                comparisons = engine.comparisons();
+            }
+            timer.items(merges);
+            if (stats != null) {
+                stats.method = method.name();
+                stats.merges += merges;
+                stats.clusterComparisons += comparisons;
+                if (stats.taxa == 0) stats.taxa = matrix.size();
+            }
+            return root;
+        }
+    }
+}
@@ -1,13 +1,109 @@
 package io.github.falabdullateef;
 
+import java.util.Arrays;
+
+/**
+ * Tree node. Only leaves carry a label; an internal node's display name "(left,right)" is generated
+ * on demand, so merged clusters never hold strings that grow with the size of the tree.
+ */
 class TreeNode {
-    String name;
+    final String label; // leaf label, null for internal nodes
     TreeNode left;
     TreeNode right;
     double height; // distance from leaves (leaves = 0). For UPGMA: internal node height = d(children)/2
+    double branchLength; // length of the edge to the parent (0 for the root); NJ trees are not ultrametric
+    double support = Double.NaN; // bootstrap support in percent; NaN when not computed
 
-    TreeNode(String name) {
-        this.name = name;
+    TreeNode(String label) {
+        this.label = label;
         this.height = 0.0;
     }
+
+    TreeNode(TreeNode left, TreeNode right) {
+        this.label = null;
+        this.left = left;
+        this.right = right;
+    }
+
+    boolean isLeaf() {
+        return label != null;
+    }
+
+    /** Display name: the leaf label, or "(left,right)" built recursively from the children's names. */
+    String name() {
+        if (isLeaf()) return label;
+        StringBuilder sb = new StringBuilder();
+        appendName(sb);
+        return sb.toString();
+    }
+
+    void appendName(StringBuilder sb) {
+        NameCursor cursor = new NameCursor(this);
+        for (int c; (c = cursor.next()) >= 0; ) sb.append((char) c);
+    }
+
+    /**
+     * Compares the display names of two nodes as {@link String#compareTo} would, reading them one
+     * character at a time and stopping at the first difference instead of building either string.
+     */
+    static int compareNames(TreeNode a, TreeNode b) {
+        if (a.isLeaf() && b.isLeaf()) return a.label.compareTo(b.label);
+        NameCursor x = new NameCursor(a);
+        NameCursor y = new NameCursor(b);
+        while (true) {
+            int cx = x.next();
+            int cy = y.next();
+            if (cx != cy) return cx < 0 ? -1 : cy < 0 ? 1 : cx - cy;
+            if (cx < 0) return 0;
+        }
+    }
+
+    /** Streams the characters of a node's display name with an explicit stack (no recursion). */
+    private static final class NameCursor {
+        private TreeNode[] nodes = new TreeNode[16];
+        private int[] states = new int[16]; // leaf: next char index; internal: 0 '(' / 1 ',' / 2 ')'
+        private int top;
+
+        NameCursor(TreeNode root) {
+            nodes[top++] = root;
+        }
+
+        int next() {
+            while (top > 0) {
+                TreeNode node = nodes[top - 1];
+                int state = states[top - 1];
+                if (node.isLeaf()) {
+                    if (state < node.label.length()) {
+                        states[top - 1] = state + 1;
+                        return node.label.charAt(state);
+                    }
+                    nodes[--top] = null;
+                    continue;
+                }
+                switch (state) {
+                    case 0:
+                        states[top - 1] = 1;
+                        push(node.left);
+                        return '(';
+                    case 1:
+                        states[top - 1] = 2;
+                        push(node.right);
+                        return ',';
+                    default:
+                        nodes[--top] = null;
+                        return ')';
+                }
+            }
+            return -1;
+        }
+
+        private void push(TreeNode node) {
+            if (top == nodes.length) {
+                nodes = Arrays.copyOf(nodes, top * 2);
+                states = Arrays.copyOf(states, top * 2);
+            }
+            nodes[top] = node;
+            states[top++] = 0;
+        }
+    }
 }
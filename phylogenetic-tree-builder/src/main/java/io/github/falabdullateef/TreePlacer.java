@@ -0,0 +1,255 @@
+package io.github.falabdullateef;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Adds taxa to an existing tree one at a time without reclustering. Each new taxon only needs its
+ * distances to the leaves already in the tree, O(n*L), and one O(n) pass over the tree, instead of
+ * a new O(n^2*L) matrix and an O(n^2) to O(n^3) clustering.
+ *
+ * <p>Where it joins depends on the tree:
+ * <ul>
+ *   <li>ultrametric trees (UPGMA/WPGMA): the taxon walks down from the root into the child clade
+ *       with the smaller average distance, until it is no closer to either child than the
+ *       children are to each other (twice the node's height). It joins the edge above that clade at half its average distance, clamped
+ *       to the edge, as a merge would have placed it;</li>
+ *   <li>additive trees (NJ): not walked but fitted. Every edge is scored by the weighted least
+ *       squares error of attaching the taxon there (Fitch-Margoliash weights 1/d^2, as APPLES
+ *       does), with the attachment point and pendant length that minimise it; the best edge wins.
+ *       Sums of residuals below and above each edge are shifted along the edges in one pass down
+ *       and one pass up, so scoring all edges is O(n). A taxon at distance 0 from a leaf joins it
+ *       directly.</li>
+ * </ul>
+ * Placed taxa become ordinary leaves, so later ones can be placed next to them.
+ */
+final class TreePlacer {
+    private final String[] names;
+    private final DistanceMatrixBuilder.PairKernel kernel;
+    private final boolean ultrametric;
+    private final Map<String, Integer> taxa;
+    private int leaves;
+    private long pairs;
+
+    TreePlacer(Alignment alignment, DistanceMatrixBuilder.PairKernel kernel, boolean ultrametric) {
+        this.names = alignment.names;
+        this.kernel = kernel;
+        this.ultrametric = ultrametric;
+        this.taxa = new HashMap<>(alignment.size() * 2);
+        for (int i = 0; i < alignment.size(); i++) taxa.put(alignment.names[i], i);
+    }
+
+    /** Distances computed so far. */
+    long pairs() { return pairs; }
+
+    /**
+     * Places every taxon of the alignment that is not a leaf of {@code root} yet, in alignment
+     * order, and returns the (possibly new) root. Leaves missing from the alignment are an error.
+     */
+    TreeNode placeMissing(TreeNode root) {
+        boolean[] present = new boolean[names.length];
+        leaves = 0;
+        TreeNode[] stack = {root};
+        for (int top = 1; top > 0; ) {
+            TreeNode node = stack[--top];
+            if (node.isLeaf()) {
+                Integer taxon = taxa.get(node.label);
+                if (taxon == null) throw new IllegalArgumentException("Tree leaf " + node.label + " has no sequence");
+                if (present[taxon]) throw new IllegalArgumentException("Tree leaf " + node.label + " occurs twice");
+                present[taxon] = true;
+                leaves++;
+                continue;
+            }
+            if (top + 2 > stack.length) stack = Arrays.copyOf(stack, stack.length * 2);
+            stack[top++] = node.left;
+            stack[top++] = node.right;
+        }
+        for (int i = 0; i < names.length; i++) {
+            if (!present[i]) root = place(root, new TreeNode(names[i]), i);
+        }
+        return root;
+    }
+
+    private TreeNode place(TreeNode root, TreeNode leaf, int query) {
+        // pre-order arrays (parents before children) over the current tree
+        int size = 2 * leaves - 1;
+        TreeNode[] nodes = new TreeNode[size];
+        int[] parent = new int[size];
+        int[] left = new int[size];
+        int[] right = new int[size];
+        nodes[0] = root;
+        parent[0] = -1;
+        int[] stack = new int[size];
+        int top = 0;
+        int next = 1;
+        stack[top++] = 0;
+        while (top > 0) {
+            int v = stack[--top];
+            TreeNode node = nodes[v];
+            if (node.isLeaf()) continue;
+            left[v] = next;
+            nodes[next] = node.left;
+            parent[next] = v;
+            stack[top++] = next++;
+            right[v] = next;
+            nodes[next] = node.right;
+            parent[next] = v;
+            stack[top++] = next++;
+        }
+
+        // bottom-up: leaf count and summed distance to the query
+        int[] count = new int[size];
+        double[] sum = new double[size];
+        for (int v = size - 1; v >= 0; v--) {
+            TreeNode node = nodes[v];
+            if (node.isLeaf()) {
+                count[v] = 1;
+                sum[v] = kernel.distance(query, taxa.get(node.label));
+                pairs++;
+            } else {
+                count[v] = count[left[v]] + count[right[v]];
+                sum[v] = sum[left[v]] + sum[right[v]];
+            }
+        }
+
+        int v = 0;
+        double t = 0, pendant = 0; // additive trees: attachment point on v's edge, measured from its parent
+        if (ultrametric) {
+            while (!nodes[v].isLeaf()) {
+                int a = left[v], b = right[v];
+                double da = sum[a] / count[a], db = sum[b] / count[b];
+                if (Math.min(da, db) >= 2 * nodes[v].height) break; // not closer to either side than they are to each other
+                v = da <= db ? a : b;
+            }
+        } else if (size == 1) {
+            pendant = sum[0]; // single-leaf tree
+        } else {
+            int same = -1;
+            for (int u = 0; u < size && same < 0; u++) {
+                if (nodes[u].isLeaf() && sum[u] == 0) same = u;
+            }
+            if (same >= 0) {
+                v = same;
+                t = Math.max(0, nodes[v].branchLength); // identical to a leaf: join it at zero length
+            } else {
+                double[] fit = new double[2];
+                double best = Double.POSITIVE_INFINITY;
+                Residuals below = Residuals.below(nodes, left, right, sum);
+                Residuals above = Residuals.above(nodes, parent, left, right, below);
+                for (int u = 1; u < size; u++) {
+                    double error = fit(below, above, u, Math.max(0, nodes[u].branchLength), fit);
+                    if (error < best) {
+                        best = error;
+                        v = u;
+                        t = fit[0];
+                        pendant = fit[1];
+                    }
+                }
+            }
+        }
+
+        TreeNode clade = nodes[v];
+        int p = parent[v];
+        TreeNode above = p >= 0 ? nodes[p] : null;
+        TreeNode joint = TreeNode.compareNames(clade, leaf) <= 0 ? new TreeNode(clade, leaf) : new TreeNode(leaf, clade);
+        if (ultrametric) {
+            double h = Math.max(sum[v] / count[v] / 2, clade.height);
+            if (above != null) h = Math.min(h, above.height);
+            joint.height = h;
+            clade.branchLength = h - clade.height;
+            leaf.branchLength = h;
+            joint.branchLength = above != null ? above.height - h : 0;
+        } else {
+            joint.branchLength = t;
+            clade.branchLength -= t;
+            leaf.branchLength = pendant;
+            joint.height = Math.max(clade.height + clade.branchLength, leaf.branchLength);
+        }
+        leaves++;
+        if (above == null) return joint;
+        if (above.left == clade) above.left = joint;
+        else above.right = joint;
+        return root;
+    }
+
+    /**
+     * Best attachment on edge u (length l) for weighted residual sums: below u relative to u, and
+     * outside u relative to u's parent. Stores the distance from the parent end and the pendant
+     * length in {@code fit} and returns the weighted squared error.
+     */
+    private static double fit(Residuals below, Residuals above, int u, double l, double[] fit) {
+        double wb = below.weight[u], wa = above.weight[u];
+        double mb = below.sum[u] / wb, ma = above.sum[u] / wa;
+        // unconstrained, pendant + x fits the leaves below and pendant + l - x those outside exactly
+        double x = (mb - ma + l) / 2, p = (mb + ma - l) / 2;
+        if (p < 0) {
+            p = 0;
+            x = clamp((wb * mb - wa * (ma - l)) / (wb + wa), l);
+        } else if (x < 0 || x > l) {
+            x = clamp(x, l);
+            p = Math.max(0, (wb * (mb - x) + wa * (ma - l + x)) / (wb + wa));
+        }
+        fit[0] = l - x;
+        fit[1] = p;
+        double db = p + x, da = p + l - x;
+        return below.squares[u] - 2 * db * below.sum[u] + wb * db * db
+                + above.squares[u] - 2 * da * above.sum[u] + wa * da * da;
+    }
+
+    private static double clamp(double x, double l) {
+        return Math.max(0, Math.min(l, x));
+    }
+
+    /**
+     * Weighted sums of the query's residuals d(query, leaf) - path(node, leaf) over a set of leaves
+     * per node: total weight, residuals and squared residuals. Moving the reference node up an edge
+     * of length e shifts every residual by -e, which the sums absorb in O(1).
+     */
+    private static final class Residuals {
+        final double[] weight, sum, squares;
+
+        private Residuals(int size) {
+            weight = new double[size];
+            sum = new double[size];
+            squares = new double[size];
+        }
+
+        /** Adds {@code from}'s sums at node {@code v}, taken one edge of length e further up. */
+        void addShifted(int v, Residuals from, int u, double e) {
+            double w = from.weight[u], s = from.sum[u];
+            weight[v] += w;
+            sum[v] += s - e * w;
+            squares[v] += from.squares[u] - 2 * e * s + e * e * w;
+        }
+
+        /** Leaves below each node, relative to the node; {@code distance} holds the leaves' distances. */
+        static Residuals below(TreeNode[] nodes, int[] left, int[] right, double[] distance) {
+            Residuals r = new Residuals(nodes.length);
+            for (int v = nodes.length - 1; v >= 0; v--) {
+                if (nodes[v].isLeaf()) {
+                    double d = Math.max(distance[v], 1e-8);
+                    r.weight[v] = 1 / (d * d);
+                    r.sum[v] = 1 / d;
+                    r.squares[v] = 1;
+                } else {
+                    r.addShifted(v, r, left[v], nodes[left[v]].branchLength);
+                    r.addShifted(v, r, right[v], nodes[right[v]].branchLength);
+                }
+            }
+            return r;
+        }
+
+        /** Leaves outside each non-root node, relative to its parent. */
+        static Residuals above(TreeNode[] nodes, int[] parent, int[] left, int[] right, Residuals below) {
+            Residuals r = new Residuals(nodes.length);
+            for (int v = 1; v < nodes.length; v++) {
+                int p = parent[v];
+                int sibling = left[p] == v ? right[p] : left[p];
+                r.addShifted(v, below, sibling, nodes[sibling].branchLength);
+                if (p != 0) r.addShifted(v, r, p, nodes[p].branchLength);
+            }
+            return r;
+        }
+    }
+}
@@ -1,50 +1,94 @@
 package io.github.falabdullateef;
 
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * ASCII tree view. Walks the tree with an explicit stack (UPGMA trees on real data are often a long
+ * caterpillar, deep enough to overflow the call stack) and keeps the connector prefix in one
+ * {@link StringBuilder} that is truncated back to the current depth instead of copied per level.
+ *
+ * <p>Each line carries its node's full display name and 4 characters of indent per level, so the
+ * view is O(n^2) characters on a caterpillar of n taxa; {@link NewickWriter} stays linear.
+ */
 final class TreePrinter {
     private TreePrinter() {}
 
-    static void print(TreeNode node, String prefix, boolean isLast) {
+    private static final int MAX_DASH = 20; // visual width cap for the longest branch
+
+    static void print(TreeNode root, Writer out) throws IOException {
+        if (root == null) return;
         // Precompute the maximum branch length in the tree to scale ASCII connectors proportionally
-        double rootHeight = node != null ? node.height : 0.0;
-        double maxBranch = maxBranchLen(node, rootHeight);
-        print(node, prefix, isLast, rootHeight, maxBranch);
-    }
+        double maxBranch = maxBranchLen(root);
 
-    private static void print(TreeNode node, String prefix, boolean isLast, double parentHeight, double maxBranchLen) {
-        if (node == null) return;
-        double branchLen = parentHeight - node.height; // for root parentHeight == node.height -> 0
-        String label = node.name;
-        // Show branch length except for root
-        String decorated = label + (parentHeight == node.height ? "" : String.format(" [%.3f]", branchLen));
-
-        // Scale the horizontal connector length in proportion to branch length
-        final int MAX_DASH = 20; // visual width cap for the longest branch
-        int dashCount = 0;
-        if (branchLen > 0 && maxBranchLen > 1e-12) {
-            dashCount = Math.max(1, (int)Math.round((branchLen / maxBranchLen) * MAX_DASH));
-        }
+        TreeNode[] nodes = new TreeNode[64];
+        int[] depths = new int[64];
+        boolean[] last = new boolean[64];
+        nodes[0] = root;
+        last[0] = true;
+        int top = 1;
+        StringBuilder prefix = new StringBuilder(256);
+        StringBuilder line = new StringBuilder(256);
 
-        String branchStart = isLast ? "+" : "|";
-        String dashes = repeat("-", dashCount + 2); // always at least "--" for visibility
-        System.out.println(prefix + branchStart + dashes + " " + decorated);
+        while (top > 0) {
+            top--;
+            TreeNode node = nodes[top];
+            int depth = depths[top];
+            boolean isLast = last[top];
+            nodes[top] = null;
 
-        String newPrefix = prefix + (isLast ? "    " : "|   ");
-        if (node.left != null) print(node.left, newPrefix, node.right == null, node.height, maxBranchLen);
-        if (node.right != null) print(node.right, newPrefix, true, node.height, maxBranchLen);
-    }
+            // Everything before 4*depth is this node's ancestors' connectors (pre-order guarantees it)
+            prefix.setLength(4 * depth);
+            double branchLen = node.branchLength; // 0 for the root
+            int dashCount = 0;
+            if (branchLen > 0 && maxBranch > 1e-12) {
+                dashCount = Math.max(1, (int) Math.round((branchLen / maxBranch) * MAX_DASH));
+            }
+            line.setLength(0);
+            line.append(prefix).append(isLast ? '+' : '|');
+            for (int k = dashCount + 2; k > 0; k--) line.append('-'); // always at least "--" for visibility
+            line.append(' ');
+            node.appendName(line);
+            // Show branch length except for root
+            if (branchLen != 0) line.append(String.format(" [%.3f]", branchLen));
+            if (!Double.isNaN(node.support)) line.append(" (").append(Math.round(node.support)).append("%)");
+            line.append('\n');
+            out.append(line);
 
-    private static String repeat(String s, int n) {
-        if (n <= 0) return "";
-        StringBuilder sb = new StringBuilder(s.length() * n);
-        for (int i = 0; i < n; i++) sb.append(s);
-        return sb.toString();
+            prefix.append(isLast ? "    " : "|   ");
+            if (top + 2 > nodes.length) {
+                int grown = nodes.length * 2;
+                nodes = Arrays.copyOf(nodes, grown);
+                depths = Arrays.copyOf(depths, grown);
+                last = Arrays.copyOf(last, grown);
+            }
+            // Push right first so the left child is printed first
+            if (node.right != null) {
+                nodes[top] = node.right;
+                depths[top] = depth + 1;
+                last[top++] = true;
+            }
+            if (node.left != null) {
+                nodes[top] = node.left;
+                depths[top] = depth + 1;
+                last[top++] = node.right == null;
+            }
+        }
     }
 
-    private static double maxBranchLen(TreeNode node, double parentHeight) {
-        if (node == null) return 0.0;
-        double here = Math.max(0.0, parentHeight - node.height);
-        double left = maxBranchLen(node.left, node.height);
-        double right = maxBranchLen(node.right, node.height);
-        return Math.max(here, Math.max(left, right));
+    static double maxBranchLen(TreeNode root) {
+        double max = 0.0;
+        if (root == null) return max;
+        ArrayDeque<TreeNode> stack = new ArrayDeque<>();
+        stack.push(root);
+        while (!stack.isEmpty()) {
+            TreeNode node = stack.pop();
+            max = Math.max(max, node.branchLength);
+            if (node.left != null) stack.push(node.left);
+            if (node.right != null) stack.push(node.right);
+        }
+        return max;
     }
 }
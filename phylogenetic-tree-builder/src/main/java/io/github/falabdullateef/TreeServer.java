@@ -0,0 +1,312 @@
+package io.github.falabdullateef;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Long-running local HTTP service around {@link TreeBuilder}, so other processes can build trees
+ * without starting a JVM per job. Listens on the loopback interface only.
+ *
+ * <ul>
+ *   <li>{@code POST /build?method=nj&distance=k2p&format=fasta&bootstrap=100&seed=1&compress=false&dedup&sketch&kmer=21&sketchSize=1000}:
+ *       the request body is the input file (plain or gzip), or {@code path=<file>} names a local
+ *       file instead. All parameters are optional and mean the same as the command-line flags.
+ *       Responds with {@code {"newick":..., "queueMs":..., "totalMs":..., "stats":{...}}}.</li>
+ *   <li>{@code GET /status}: admitted jobs and free memory budget.</li>
+ * </ul>
+ *
+ * <p>Each request runs on its own virtual thread when the JVM has them (Java 21+), otherwise on a
+ * platform thread. At most {@code queueCapacity} jobs are admitted, waiting or running; more get
+ * 503 right away. Jobs wait in FIFO order for a share of the memory budget, so a few large builds
+ * run one after another instead of exhausting the heap together. A FASTA job first reserves about
+ * the size of its input for parsing, then grows the share to the size of its matrices
+ * ({@link TreeBuilder#estimateBytes}). A job larger than the whole budget runs alone. Errors other
+ * than bad requests are answered with 500 and a JSON message.
+ */
+final class TreeServer {
+    private static final long MB = 1 << 20;
+
+    private final HttpServer http;
+    private final ExecutorService executor;
+    private final boolean virtualThreads;
+    private final TreeBuilder defaults;
+    private final int queueCapacity;
+    private final Semaphore queue;
+    private final int memoryMb;
+    private final Semaphore memory;
+
+    private TreeServer(HttpServer http, ExecutorService executor, boolean virtualThreads, TreeBuilder defaults,
+                       int queueCapacity, long memoryBudget) {
+        this.http = http;
+        this.executor = executor;
+        this.virtualThreads = virtualThreads;
+        this.defaults = defaults;
+        this.queueCapacity = queueCapacity;
+        this.queue = new Semaphore(queueCapacity);
+        this.memoryMb = (int) Math.max(1, Math.min(Integer.MAX_VALUE, memoryBudget / MB));
+        this.memory = new Semaphore(memoryMb, true);
+    }
+
+    /**
+     * Starts serving on {@code port} (0 picks a free one). Jobs use {@code defaults}' settings,
+     * overridden per request; it is copied, never modified.
+     */
+    static TreeServer start(int port, TreeBuilder defaults, int queueCapacity, long memoryBudget) throws IOException {
+        if (queueCapacity < 1) throw new IllegalArgumentException("Queue capacity must be >= 1, got " + queueCapacity);
+        if (memoryBudget < MB) throw new IllegalArgumentException("Memory budget must be at least 1M, got " + memoryBudget);
+        HttpServer http = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        ExecutorService executor = virtualThreadExecutor();
+        boolean virtual = executor != null;
+        if (executor == null) executor = Executors.newCachedThreadPool();
+        TreeServer server = new TreeServer(http, executor, virtual, defaults.copy().trace(null).mergeLog(null).checkpoints(null, 0, false), queueCapacity, memoryBudget);
+        http.createContext("/build", server::handleBuild);
+        http.createContext("/status", server::handleStatus);
+        http.setExecutor(executor);
+        http.start();
+        return server;
+    }
+
+    /** {@code Executors.newVirtualThreadPerTaskExecutor()}, looked up reflectively; null before Java 21. */
+    private static ExecutorService virtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    InetSocketAddress address() {
+        return http.getAddress();
+    }
+
+    boolean virtualThreads() {
+        return virtualThreads;
+    }
+
+    void stop() {
+        http.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void handleStatus(HttpExchange exchange) throws IOException {
+        String json = "{\"jobs\":" + (queueCapacity - queue.availablePermits())
+                + ",\"queueCapacity\":" + queueCapacity
+                + ",\"memoryBudgetBytes\":" + memoryMb * MB
+                + ",\"memoryFreeBytes\":" + memory.availablePermits() * MB
+                + ",\"virtualThreads\":" + virtualThreads + "}";
+        respond(exchange, 200, json);
+    }
+
+    private void handleBuild(HttpExchange exchange) throws IOException {
+        long received = System.nanoTime();
+        try {
+            if (!exchange.getRequestMethod().equals("POST")) {
+                respond(exchange, 405, error("POST an input file to /build"));
+                return;
+            }
+            if (!queue.tryAcquire()) {
+                respond(exchange, 503, error("Queue full (" + queueCapacity + " jobs)"));
+                return;
+            }
+            Path spooled = null;
+            try {
+                Map<String, String> params = query(exchange.getRequestURI());
+                Path input;
+                if (params.containsKey("path")) {
+                    input = Paths.get(params.get("path"));
+                } else {
+                    spooled = Files.createTempFile("ptb-job", ".in");
+                    Files.copy(exchange.getRequestBody(), spooled, StandardCopyOption.REPLACE_EXISTING);
+                    input = spooled;
+                }
+                respond(exchange, 200, run(input, params, received));
+            } catch (IllegalArgumentException e) {
+                respond(exchange, 400, error(e.getMessage()));
+            } catch (IOException e) {
+                respond(exchange, 500, error(e.getMessage()));
+            } catch (RuntimeException e) {
+                respond(exchange, 500, error(e.toString()));
+            } finally {
+                queue.release();
+                if (spooled != null) Files.deleteIfExists(spooled);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /** Parses, waits for memory, builds; returns the response JSON. */
+    private String run(Path input, Map<String, String> params, long received) throws IOException {
+        TreeBuilder builder = defaults.copy();
+        String format = params.getOrDefault("format", "fasta").toLowerCase(Locale.ROOT);
+        boolean binary = format.equals("binary");
+        MatrixReader.Format matrixFormat = format.equals("fasta") || binary ? null : MatrixReader.Format.parse(format);
+        boolean sketch = params.containsKey("sketch") && !params.get("sketch").equals("false");
+        if (params.containsKey("method")) builder.method(ClusterMethod.parse(params.get("method")));
+        if (params.containsKey("distance")) builder.metric(DistanceMetric.parse(params.get("distance")));
+        if (params.containsKey("compress")) builder.compressPatterns(!params.get("compress").equals("false"));
+        if (params.containsKey("dedup")) builder.dedup(!params.get("dedup").equals("false"));
+        int replicates = intParam(params, "bootstrap", 0);
+        builder.bootstrap(replicates, Long.parseLong(params.getOrDefault("seed", "1")));
+        if ((matrixFormat != null || sketch) && replicates > 0) {
+            throw new IllegalArgumentException("bootstrap needs an alignment");
+        }
+
+        BuildStats stats = new BuildStats();
+        stats.source = params.getOrDefault("path", "request");
+        TreeNode root;
+        long waited;
+        if (matrixFormat != null) {
+            // a text matrix has at least 2 bytes per cell, so the triangle is at most 4x the file
+            long size = Files.size(input);
+            try (Permit permit = acquire(matrixFormat == MatrixReader.Format.BINTRI ? size : 4 * size)) {
+                try (DistanceMatrix matrix = MatrixReader.read(input, matrixFormat, builder, stats)) {
+                    // the file bound leaves out what clustering adds, such as NJ's sorted rows
+                    permit.grow(builder.estimateBytes(matrix.size(), 0));
+                    waited = permit.waitedNanos;
+                    root = builder.cluster(matrix, stats);
+                }
+            }
+        } else if (sketch) {
+            if (binary) throw new IllegalArgumentException("sketch works on DNA FASTA");
+            try (Permit permit = acquire(parseBytes(input))) {
+                MinHashSketches sketches = MinHashSketches.read(input, intParam(params, "kmer", MinHashSketches.DEFAULT_K),
+                        intParam(params, "sketchSize", MinHashSketches.DEFAULT_SIZE), stats, builder.threads());
+                if (sketches.count() == 0) throw new IllegalArgumentException("No sequences found");
+                permit.grow(builder.estimateBytes(sketches.count(), (long) sketches.hashes.length * Long.BYTES));
+                waited = permit.waitedNanos;
+                root = builder.build(sketches, stats);
+            }
+        } else {
+            try (Permit permit = acquire(parseBytes(input))) {
+                Alignment alignment = FastaReader.readPacked(input, binary, stats, builder.threads());
+                if (alignment.size() == 0) throw new IllegalArgumentException("No sequences found");
+                PackedSequences seqs = alignment.sequences;
+                long packed = ((long) seqs.bits.length + (seqs.masks != null ? seqs.masks.length : 0)) * Long.BYTES;
+                permit.grow(builder.estimateBytes(alignment.size(), packed));
+                waited = permit.waitedNanos;
+                root = builder.build(alignment, stats);
+            }
+        }
+
+        StringWriter newick = new StringWriter();
+        NewickWriter.write(root, newick);
+        return "{\"newick\":" + BuildStats.quote(newick.toString().trim())
+                + ",\"queueMs\":" + String.format(Locale.ROOT, "%.3f", waited / 1e6)
+                + ",\"totalMs\":" + String.format(Locale.ROOT, "%.3f", (System.nanoTime() - received) / 1e6)
+                + ",\"stats\":" + stats.toJson() + "}";
+    }
+
+    /**
+     * Heap needed to parse {@code input}: the packed alignment and its growth stay below the text
+     * size, which for gzip input is taken as 4x the file (about what DNA deflates to).
+     */
+    private static long parseBytes(Path input) throws IOException {
+        try (FileChannel ch = FileChannel.open(input, StandardOpenOption.READ)) {
+            return GzipInput.isGzip(ch) ? 4 * ch.size() : ch.size();
+        }
+    }
+
+    private Permit acquire(long bytes) throws IOException {
+        Permit permit = new Permit();
+        permit.grow(bytes);
+        return permit;
+    }
+
+    private int permits(long bytes) {
+        return (int) Math.max(1, Math.min(memoryMb, (bytes + MB - 1) / MB));
+    }
+
+    /** A held share of the memory budget, released on close. */
+    private final class Permit implements AutoCloseable {
+        int permits;
+        long waitedNanos;
+
+        /**
+         * Grows the share to {@code bytes}. Right away if the budget has room; otherwise the share is
+         * handed back and the whole amount waited for in turn, since jobs holding part of their
+         * share while waiting for the rest could block each other for good.
+         */
+        void grow(long bytes) throws IOException {
+            int wanted = permits(bytes);
+            if (wanted <= permits || (permits > 0 && memory.tryAcquire(wanted - permits))) {
+                permits = Math.max(permits, wanted);
+                return;
+            }
+            memory.release(permits);
+            permits = 0;
+            long start = System.nanoTime();
+            try {
+                memory.acquire(wanted);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for memory", e);
+            }
+            waitedNanos += System.nanoTime() - start;
+            permits = wanted;
+        }
+
+        @Override
+        public void close() {
+            memory.release(permits);
+        }
+    }
+
+    private static int intParam(Map<String, String> params, String name, int fallback) {
+        String value = params.get(name);
+        if (value == null) return fallback;
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Bad " + name + ": " + value);
+        }
+    }
+
+    /** Query parameters; a bare {@code name} maps to the empty string. */
+    private static Map<String, String> query(URI uri) {
+        Map<String, String> params = new HashMap<>();
+        String raw = uri.getRawQuery();
+        if (raw == null || raw.isEmpty()) return params;
+        for (String pair : raw.split("&")) {
+            int eq = pair.indexOf('=');
+            String name = URLDecoder.decode(eq < 0 ? pair : pair.substring(0, eq), StandardCharsets.UTF_8);
+            String value = eq < 0 ? "" : URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8);
+            params.put(name, value);
+        }
+        return params;
+    }
+
+    private static String error(String message) {
+        return "{\"error\":" + BuildStats.quote(String.valueOf(message)) + "}";
+    }
+
+    private static void respond(HttpExchange exchange, int status, String json) throws IOException {
+        byte[] body = (json + "\n").getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+}